@@ -119,6 +119,11 @@ public interface RdfConstants {
     
     String PREMIS_HAS_EVENT_DATE = PREMIS_NAMESPACE + "hasEventDateTime";
 
+    /**
+     * premis:hasSize, the size in bytes of a fedora binary
+     */
+    String PREMIS_HAS_SIZE = PREMIS_NAMESPACE + "hasSize";
+
     String PRES_BAG_ID = UVA_PRESERVATION_NAMESPACE + "aptrustEtag";
     String PRES_BAG_SIZE = UVA_PRESERVATION_NAMESPACE + "bagSize";
     String PRES_BAG_PAYLOAD_SIZE = UVA_PRESERVATION_NAMESPACE + "bagPayloadSize";
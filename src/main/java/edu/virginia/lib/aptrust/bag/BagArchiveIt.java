@@ -8,23 +8,24 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3Client;
 
 import edu.virginia.lib.aptrust.bags.APTrustInfo;
 import edu.virginia.lib.aptrust.bags.BagInfo;
 import edu.virginia.lib.aptrust.bags.BagSummary;
-import edu.virginia.lib.aptrust.bags.util.BagSubmitter;
 import edu.virginia.lib.aptrust.helper.Fedora4Client;
 import edu.virginia.lib.aptrust.helper.FusekiReader;
+import edu.virginia.lib.aptrust.helper.ScratchSpace;
+import edu.virginia.lib.aptrust.helper.SegmentedDownloader;
 
 public class BagArchiveIt {
 
@@ -38,20 +39,23 @@ public class BagArchiveIt {
 
     private FusekiReader triplestore;
 
-    private BagSubmitter submitter;
+    private BagTransfer transfer;
+
+    private BagPipeline pipeline;
     
     public BagArchiveIt() throws IOException, URISyntaxException {
         Properties ingestProperties = getProperties("ingest.properties");
 
         f4Client = new Fedora4Client(getOptionalProperty(ingestProperties, "f4-username"), getOptionalProperty(ingestProperties, "f4-password"), getRequiredProperty(ingestProperties, "f4-url"));
         
-        triplestore = new FusekiReader(getRequiredProperty(ingestProperties, "triplestore-url"));
-
-        Properties p = getProperties("aws-credentials.properties");
-        AWSCredentials credentials = new BasicAWSCredentials(getRequiredProperty(p, "accessKey"), getRequiredProperty(p, "secretKey"));
-        AmazonS3Client amazonS3Client = new AmazonS3Client(credentials);
+        triplestore = new FusekiReader(getRequiredProperty(ingestProperties, "triplestore-url"),
+                FusekiReader.getSlowQueryThreshold(getOptionalProperty(ingestProperties, "triplestore-slow-query-ms")));
+        ScratchSpace.configureDefault(ingestProperties, null);
+        SegmentedDownloader.configureDefault(ingestProperties);
+        Fedora4APTrustBag.configureDefaults(ingestProperties);
 
-        submitter = new BagSubmitter(amazonS3Client, getRequiredProperty(p, "bucketName"));
+        transfer = BagTransfer.create(ingestProperties, getProperties("aws-credentials.properties"));
+        pipeline = BagPipeline.create(ingestProperties, f4Client, triplestore, transfer);
         
     }
     
@@ -91,32 +95,29 @@ public class BagArchiveIt {
                 "     ?crawl premis:hasEvent ?event\n" + 
                 "  }\n" + 
                 "}";
-        LOGGER.info("Querying for ArchiveIt crawls...");
-        LOGGER.info(toIngestQuery);
-        for (Map<String, String> m : triplestore.getQueryResponse(toIngestQuery)) {
-            final URI uri = new URI(m.get("crawl"));
-            LOGGER.info("Bagging " + uri + "...");
-            Fedora4APTrustBag bag = new Fedora4APTrustBag(new BagInfo().sourceOrganization("virginia.edu"),
-                    new APTrustInfo(m.get("crawlTitle") + " crawl of \"" + m.get("collectionTitle") + "\"", APTrustInfo.CONSORTIA), uri, f4Client, triplestore, null);
-            LOGGER.debug("Creating and transferring bag for " + uri + " at " + new Date() + "...");
-            BagSummary bs = bag.serializeAPTrustBag(new File("output"), true);
-            LOGGER.debug(bs.getManifestCopy());
-            LOGGER.info(bs.getFile().getName() + " created, " + bs.getFile().length()
-                    + " bytes with base64 checksum=" + bs.getBase64Checksum());
-            
-            // ingest bag
-            BagSubmitter.TransferSummary ts = submitter.transferBag(bs, false);
-            if (ts.wasTransferred()) {
-                Bagger.createPremisEventForIngest(f4Client, triplestore, uri, bs, ts);
-                bs.getFile().delete();
-                LOGGER.info("Transferred in " + ts.getDuration() + " ms.");
-            } else {
-                LOGGER.warn(bs.getFile() + " not transferred!  " + ts.getMessage());
-                bs.getFile().delete();
+        final Map<URI, String> titles = new ConcurrentHashMap<URI, String>();
+        pipeline.run(new BagPipeline.Source() {
+            @Override
+            public List<URI> nextCandidates() throws Exception {
+                LOGGER.info("Querying for ArchiveIt crawls...");
+                LOGGER.info(toIngestQuery);
+                final List<URI> crawls = new ArrayList<URI>();
+                for (Map<String, String> m : triplestore.getQueryResponse(toIngestQuery)) {
+                    final URI uri = new URI(m.get("crawl"));
+                    titles.put(uri, m.get("crawlTitle") + " crawl of \"" + m.get("collectionTitle") + "\"");
+                    crawls.add(uri);
+                }
+                return crawls;
             }
 
-        }
-        
+            @Override
+            public Fedora4APTrustBag createBag(URI uri) throws Exception {
+                Fedora4APTrustBag bag = new Fedora4APTrustBag(new BagInfo().sourceOrganization("virginia.edu"),
+                        new APTrustInfo(titles.get(uri), APTrustInfo.CONSORTIA), uri, f4Client, triplestore);
+                LOGGER.debug("Creating and transferring bag for " + uri + " at " + new Date() + "...");
+                return bag;
+            }
+        });
     }
     
     public void createLocalBagDirs() throws Exception {
@@ -136,7 +137,7 @@ public class BagArchiveIt {
             final URI uri = new URI(m.get("crawl"));
             LOGGER.info("Bagging " + uri + "...");
             Fedora4APTrustBag bag = new Fedora4APTrustBag(new BagInfo().sourceOrganization("virginia.edu"),
-                    new APTrustInfo(m.get("crawlTitle") + " crawl of \"" + m.get("collectionTitle") + "\"", APTrustInfo.CONSORTIA), uri, f4Client, triplestore, null);
+                    new APTrustInfo(m.get("crawlTitle") + " crawl of \"" + m.get("collectionTitle") + "\"", APTrustInfo.CONSORTIA), uri, f4Client, triplestore);
             LOGGER.debug("Creating and transferring bag for " + uri + " at " + new Date() + "...");
             BagSummary bs = bag.serializeAPTrustBag(new File("output"), false);
             LOGGER.debug(bs.getManifestCopy());
@@ -0,0 +1,450 @@
+package edu.virginia.lib.aptrust.bag;
+
+import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getOptionalProperty;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.aptrust.bags.BagSummary;
+import edu.virginia.lib.aptrust.helper.Fedora4Client;
+import edu.virginia.lib.aptrust.helper.FusekiReader;
+
+/**
+ * Bags and submits a series of resources as a pipeline of stages: candidates are
+ * fetched, bags are built, bags are uploaded and ingest events are recorded, each
+ * stage on its own threads and connected to the next by a bounded queue.  So while
+ * one bag is uploading the next is being built, rather than the network sitting idle
+ * through each build and the disks through each upload.  The queues bound the number
+ * of built bags waiting on disk.
+ *
+ * A resource that fails at any stage is logged and skipped.  Resources returned again
+ * by the Source (because their events haven't been recorded yet, or because they
+ * failed) aren't bagged twice in one run.  If a worker thread dies (from an Error or
+ * an interrupt) the run is stopped, and the items still in the pipeline are cleaned up
+ * rather than left for threads that no longer exist.
+ */
+public class BagPipeline {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(BagPipeline.class);
+
+    private static final int DEFAULT_BUILD_THREADS = 1;
+
+    private static final int DEFAULT_UPLOAD_THREADS = 1;
+
+    private static final int DEFAULT_RECORD_THREADS = 1;
+
+    private static final int DEFAULT_QUEUE_LENGTH = 1;
+
+    /**
+     * Marks the end of the items in a queue.
+     */
+    private static final Item END = new Item(null);
+
+    /**
+     * Creates a BagPipeline configured from the optional "pipeline-build-threads",
+     * "pipeline-upload-threads", "pipeline-record-threads" and "pipeline-queue-length"
+     * properties.
+     */
+    public static BagPipeline create(Properties p, Fedora4Client f4Client, FusekiReader triplestore, BagTransfer transfer) {
+        return new BagPipeline(f4Client, triplestore, transfer,
+                getInt(p, "pipeline-build-threads", DEFAULT_BUILD_THREADS),
+                getInt(p, "pipeline-upload-threads", DEFAULT_UPLOAD_THREADS),
+                getInt(p, "pipeline-record-threads", DEFAULT_RECORD_THREADS),
+                getInt(p, "pipeline-queue-length", DEFAULT_QUEUE_LENGTH));
+    }
+
+    private static int getInt(Properties p, String name, int defaultValue) {
+        final String value = getOptionalProperty(p, name);
+        return value == null || value.trim().length() == 0 ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Supplies the resources to be bagged, and their bags.
+     */
+    public interface Source {
+
+        /**
+         * Gets resources that need to be bagged.  This is called again whenever the
+         * previous candidates have been queued, and may return candidates that were
+         * already returned; an empty list (or one with only such candidates, once
+         * they're no longer in the pipeline) ends the run.
+         */
+        List<URI> nextCandidates() throws Exception;
+
+        /**
+         * Creates the bag for the given resource.  This is called on the build threads.
+         */
+        Fedora4APTrustBag createBag(URI uri) throws Exception;
+    }
+
+    private Fedora4Client f4Client;
+
+    private FusekiReader triplestore;
+
+    private BagTransfer transfer;
+
+    private int buildThreads;
+
+    private int uploadThreads;
+
+    private int recordThreads;
+
+    private int queueLength;
+
+    private File outputDir = new File("output");
+
+    private boolean overwrite;
+
+    private long quota = -1;
+
+    private long usage;
+
+    private int inFlight;
+
+    private AtomicInteger transferred = new AtomicInteger();
+
+    private AtomicBoolean stopped = new AtomicBoolean();
+
+    /**
+     * @param buildThreads the number of bags built at once
+     * @param uploadThreads the number of bags uploaded at once
+     * @param recordThreads the number of ingest events recorded at once
+     * @param queueLength the number of items waiting between each pair of stages
+     */
+    public BagPipeline(Fedora4Client f4Client, FusekiReader triplestore, BagTransfer transfer, int buildThreads,
+            int uploadThreads, int recordThreads, int queueLength) {
+        this.f4Client = f4Client;
+        this.triplestore = triplestore;
+        this.transfer = transfer;
+        this.buildThreads = buildThreads;
+        this.uploadThreads = uploadThreads;
+        this.recordThreads = recordThreads;
+        this.queueLength = queueLength;
+    }
+
+    /**
+     * Sets the directory in which bags are built (by default "output").
+     */
+    public void setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Sets whether bags that already exist in the receiving bucket are replaced.
+     */
+    public void setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+    }
+
+    /**
+     * Limits the total payload submitted.  A built bag whose payload would exceed the
+     * quota (counting the bags ahead of it in the pipeline) is discarded and skipped.
+     * @param usage the payload bytes already submitted
+     */
+    public synchronized void setQuota(long usage, long quota) {
+        this.usage = usage;
+        this.quota = quota;
+    }
+
+    /**
+     * Bags and submits everything the source supplies.
+     * @return the number of bags transferred
+     */
+    public int run(final Source source) throws Exception {
+        final BlockingQueue<Item> candidates = new ArrayBlockingQueue<Item>(queueLength);
+        final BlockingQueue<Item> built = new ArrayBlockingQueue<Item>(queueLength);
+        final BlockingQueue<Item> uploaded = new ArrayBlockingQueue<Item>(queueLength);
+        final ExecutorService workers = Executors.newFixedThreadPool(buildThreads + uploadThreads + recordThreads, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                // daemon threads so that an abandoned run doesn't keep the JVM alive
+                Thread t = new Thread(r, "bag-pipeline-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        stopped.set(false);
+        transferred.set(0);
+        startStage(workers, buildThreads, candidates, built, uploadThreads, new Stage() {
+            @Override
+            public boolean process(Item item) throws Exception {
+                return build(source, item);
+            }
+        });
+        startStage(workers, uploadThreads, built, uploaded, recordThreads, new Stage() {
+            @Override
+            public boolean process(Item item) throws Exception {
+                return upload(item);
+            }
+        });
+        startStage(workers, recordThreads, uploaded, null, 0, new Stage() {
+            @Override
+            public boolean process(Item item) throws Exception {
+                record(item);
+                return false;
+            }
+        });
+        try {
+            fetch(source, candidates);
+        } catch (Exception ex) {
+            stopped.set(true);
+            throw ex;
+        } finally {
+            for (int i = 0; i < buildThreads; i ++) {
+                candidates.put(END);
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        return transferred.get();
+    }
+
+    private void fetch(Source source, BlockingQueue<Item> candidates) throws Exception {
+        final Set<URI> seen = new HashSet<URI>();
+        while (!stopped.get()) {
+            final List<URI> next = new ArrayList<URI>();
+            for (URI uri : source.nextCandidates()) {
+                if (seen.add(uri)) {
+                    next.add(uri);
+                }
+            }
+            if (next.isEmpty()) {
+                // the source may only be returning resources still in the pipeline, so
+                // ask again once they're through it
+                if (!awaitIdle()) {
+                    return;
+                }
+                continue;
+            }
+            for (URI uri : next) {
+                if (stopped.get()) {
+                    return;
+                }
+                synchronized (this) {
+                    inFlight ++;
+                }
+                candidates.put(new Item(uri));
+            }
+        }
+    }
+
+    /**
+     * Waits until no items are in the pipeline.
+     * @return true if there were items in the pipeline
+     */
+    private synchronized boolean awaitIdle() throws InterruptedException {
+        if (inFlight == 0) {
+            return false;
+        }
+        while (inFlight > 0) {
+            wait();
+        }
+        return true;
+    }
+
+    private boolean build(Source source, Item item) throws Exception {
+        if (stopped.get()) {
+            return false;
+        }
+        LOGGER.info("Bagging " + item.uri + "...");
+        item.bs = transfer.serialize(source.createBag(item.uri), outputDir);
+        if (!reserve(item.bs.getBagPayloadSize())) {
+            LOGGER.info("Skipping " + item.uri + " because its " + item.bs.getBagPayloadSize() + " byte payload would exceed the quota.");
+            return false;
+        }
+        item.reserved = true;
+        return true;
+    }
+
+    private boolean upload(Item item) throws Exception {
+        item.result = transfer.transfer(item.bs, overwrite);
+        if (!item.result.wasTransferred()) {
+            LOGGER.warn(item.bs.getFile() + " not transferred!  " + item.result.getMessage());
+            return false;
+        }
+        // the event only needs the summary, so free the space now (failing that,
+        // finished() tries again once the event is recorded)
+        try {
+            transfer.discard(item.bs);
+            item.discarded = true;
+        } catch (Exception ex) {
+            LOGGER.warn("Unable to delete " + item.bs.getFile() + " after uploading it!", ex);
+        }
+        return true;
+    }
+
+    private void record(Item item) throws Exception {
+        Bagger.createPremisEventForIngest(f4Client, triplestore, item.uri, item.bs, item.result);
+        transferred.incrementAndGet();
+        synchronized (this) {
+            LOGGER.info("Transferred " + item.uri + " in " + item.result.getDuration() + " ms"
+                    + (quota >= 0 ? " (" + usage + " bytes used of " + quota + ")" : "."));
+        }
+    }
+
+    private synchronized boolean reserve(long bytes) {
+        if (quota >= 0 && usage + bytes > quota) {
+            return false;
+        }
+        usage += bytes;
+        return true;
+    }
+
+    /**
+     * Cleans up after an item leaves the pipeline, whether or not it was submitted.
+     */
+    private void finished(Item item) {
+        if (item.bs != null && !item.discarded) {
+            try {
+                transfer.discard(item.bs);
+            } catch (Exception ex) {
+                LOGGER.warn("Unable to delete " + item.bs.getFile() + "!", ex);
+            }
+        }
+        synchronized (this) {
+            // a bag that was uploaded counts against the quota even if its event
+            // couldn't be recorded
+            if (item.reserved && (item.result == null || !item.result.wasTransferred())) {
+                usage -= item.bs.getBagPayloadSize();
+            }
+            inFlight --;
+            notifyAll();
+        }
+    }
+
+    private void startStage(ExecutorService workers, int threads, final BlockingQueue<Item> in, final BlockingQueue<Item> out,
+            final int nextThreads, final Stage stage) {
+        final AtomicInteger running = new AtomicInteger(threads);
+        for (int i = 0; i < threads; i ++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean ended = false;
+                    try {
+                        for (Item item = in.take(); item != END; item = in.take()) {
+                            boolean passed = false;
+                            try {
+                                passed = stage.process(item);
+                            } catch (Exception ex) {
+                                LOGGER.error("Error with " + item.uri + ", skipping it... ", ex);
+                            } finally {
+                                // even an Error leaves the item accounted for
+                                if (passed && out != null) {
+                                    handOff(out, item);
+                                } else {
+                                    finished(item);
+                                }
+                            }
+                        }
+                        ended = true;
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        if (!ended) {
+                            LOGGER.error("A pipeline worker stopped unexpectedly, stopping the run.");
+                            stopped.set(true);
+                        }
+                        // the last thread of this stage to finish ends the next one
+                        if (running.decrementAndGet() == 0) {
+                            if (!ended) {
+                                drain(in);
+                            }
+                            if (out != null) {
+                                for (int j = 0; j < nextThreads; j ++) {
+                                    handOff(out, END);
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Puts an item in a queue, even if interrupted, so that it isn't lost.
+     */
+    private static void handOff(BlockingQueue<Item> queue, Item item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Finishes every item left in a queue whose stage has no threads left, up to the
+     * end marker, so that the earlier stages and the wait for an idle pipeline don't
+     * block forever.
+     */
+    private void drain(BlockingQueue<Item> queue) {
+        boolean interrupted = false;
+        while (true) {
+            final Item item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+                continue;
+            }
+            if (item == END) {
+                break;
+            }
+            finished(item);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Stage {
+
+        /**
+         * Processes an item.
+         * @return true if the item should be passed to the next stage
+         */
+        boolean process(Item item) throws Exception;
+    }
+
+    private static class Item {
+
+        private URI uri;
+
+        private BagSummary bs;
+
+        private BagTransfer.Result result;
+
+        private boolean reserved;
+
+        private boolean discarded;
+
+        private Item(URI uri) {
+            this.uri = uri;
+        }
+    }
+}
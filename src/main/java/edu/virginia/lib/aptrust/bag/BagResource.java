@@ -1,16 +1,14 @@
 package edu.virginia.lib.aptrust.bag;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3Client;
 import com.hp.hpl.jena.rdf.model.Model;
 import edu.virginia.lib.aptrust.RdfConstants;
 import edu.virginia.lib.aptrust.bags.APTrustInfo;
 import edu.virginia.lib.aptrust.bags.BagInfo;
 import edu.virginia.lib.aptrust.bags.BagSummary;
-import edu.virginia.lib.aptrust.bags.util.BagSubmitter;
 import edu.virginia.lib.aptrust.helper.Fedora4Client;
 import edu.virginia.lib.aptrust.helper.FusekiReader;
+import edu.virginia.lib.aptrust.helper.ScratchSpace;
+import edu.virginia.lib.aptrust.helper.SegmentedDownloader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,7 +27,11 @@ public class BagResource {
 
     final private static Logger LOGGER = LoggerFactory.getLogger(BagResource.class);
 
-    /** This directory must exist and must have space for 2x the bag size. **/
+    /**
+     * This directory must exist and must have space for the whole bag directory plus, when
+     * the bag is tarred, the tar itself (roughly twice the size of the bag).  Only the
+     * scratch space used to stage payload files is bounded by the prefetch window.
+     **/
     private static final File WORKING_ROOT = new File("HUGE_WORKING_SPACE");
 
     public static void main(String [] args) throws IOException, URISyntaxException, Exception {
@@ -40,20 +42,20 @@ public class BagResource {
 
     private FusekiReader triplestore;
 
-    private BagSubmitter submitter;
+    private BagTransfer transfer;
 
     public BagResource() throws Exception {
         Properties ingestProperties = getProperties("ingest.properties");
 
         f4Client = new Fedora4Client(getOptionalProperty(ingestProperties, "f4-username"), getOptionalProperty(ingestProperties, "f4-password"), getRequiredProperty(ingestProperties, "f4-url"));
         
-        triplestore = new FusekiReader(getRequiredProperty(ingestProperties, "triplestore-url"));
+        triplestore = new FusekiReader(getRequiredProperty(ingestProperties, "triplestore-url"),
+                FusekiReader.getSlowQueryThreshold(getOptionalProperty(ingestProperties, "triplestore-slow-query-ms")));
+        ScratchSpace.configureDefault(ingestProperties, new File(WORKING_ROOT, "scratch"));
+        SegmentedDownloader.configureDefault(ingestProperties);
+        Fedora4APTrustBag.configureDefaults(ingestProperties);
 
-        Properties p = getProperties("aws-credentials.properties");
-        AWSCredentials credentials = new BasicAWSCredentials(getRequiredProperty(p, "accessKey"), getRequiredProperty(p, "secretKey"));
-        AmazonS3Client amazonS3Client = new AmazonS3Client(credentials);
-
-        submitter = new BagSubmitter(amazonS3Client, getRequiredProperty(p, "bucketName"));
+        transfer = BagTransfer.create(ingestProperties, getProperties("aws-credentials.properties"));
     }
 
     public void createLocalBagDirs(final URI uri) throws Exception {
@@ -61,7 +63,7 @@ public class BagResource {
 
         LOGGER.info("Bagging " + uri + "...");
         Fedora4APTrustBag bag = new Fedora4APTrustBag(new BagInfo().sourceOrganization("virginia.edu"),
-                    new APTrustInfo(Fedora4Client.getFirstPropertyValue(m, uri, RdfConstants.DC_TITLE), APTrustInfo.CONSORTIA), uri, f4Client, triplestore, WORKING_ROOT);
+                    new APTrustInfo(Fedora4Client.getFirstPropertyValue(m, uri, RdfConstants.DC_TITLE), APTrustInfo.CONSORTIA), uri, f4Client, triplestore);
         LOGGER.debug("Creating and transferring bag for " + uri + " at " + new Date() + "...");
         BagSummary bs = bag.serializeAPTrustBag(new File(WORKING_ROOT, "output"), false);
         LOGGER.debug(bs.getManifestCopy());
@@ -74,22 +76,19 @@ public class BagResource {
 
         LOGGER.info("Bagging " + uri + "...");
         Fedora4APTrustBag bag = new Fedora4APTrustBag(new BagInfo().sourceOrganization("virginia.edu"),
-                new APTrustInfo(Fedora4Client.getFirstPropertyValue(m, uri, RdfConstants.DC_TITLE), APTrustInfo.CONSORTIA), uri, f4Client, triplestore, WORKING_ROOT);
+                new APTrustInfo(Fedora4Client.getFirstPropertyValue(m, uri, RdfConstants.DC_TITLE), APTrustInfo.CONSORTIA), uri, f4Client, triplestore);
         LOGGER.debug("Creating and transferring bag for " + uri + " at " + new Date() + "...");
-        BagSummary bs = bag.serializeAPTrustBag(new File(WORKING_ROOT, "output"), true);
-        LOGGER.debug(bs.getManifestCopy());
-        LOGGER.info(bs.getFile().getName() + " created, " + bs.getFile().length()
-                + " bytes with base64 checksum=" + bs.getBase64Checksum());
+        BagSummary bs = transfer.serialize(bag, new File(WORKING_ROOT, "output"));
 
         // ingest bag
-        BagSubmitter.TransferSummary ts = submitter.transferBag(bs, false);
+        BagTransfer.Result ts = transfer.transfer(bs, false);
         if (ts.wasTransferred()) {
             Bagger.createPremisEventForIngest(f4Client, triplestore, uri, bs, ts);
-            bs.getFile().delete();
+            transfer.discard(bs);
             LOGGER.info("Transferred in " + ts.getDuration() + " ms.");
         } else {
             LOGGER.warn(bs.getFile() + " not transferred!  " + ts.getMessage());
-            bs.getFile().delete();
+            transfer.discard(bs);
         }
     }
 }
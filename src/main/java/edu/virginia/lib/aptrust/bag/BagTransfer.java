@@ -0,0 +1,257 @@
+package edu.virginia.lib.aptrust.bag;
+
+import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getOptionalProperty;
+import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getRequiredProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.S3ClientOptions;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import edu.virginia.lib.aptrust.bags.BagSummary;
+import edu.virginia.lib.aptrust.bags.util.BagSubmitter;
+import edu.virginia.lib.aptrust.helper.S3MultipartOutputStream;
+import edu.virginia.lib.aptrust.helper.TarWriter;
+
+/**
+ * Serializes bags and sends them to the AP Trust receiving bucket.  By default bags
+ * are written as tar files and uploaded with the BagSubmitter.  In streaming mode
+ * (the "streaming-upload" property) bags are instead written as directories and tarred
+ * on the fly into a parallel multipart upload, so the tar file is never written to (or
+ * read back from) disk, and the tar checksum is computed as it's sent.
+ *
+ * Streaming does not reduce the disk space a bag needs: the bagger library still writes
+ * the complete bag directory (every payload file, alongside the manifests it computes
+ * from them) before anything is sent, so the output directory must hold the whole bag.
+ * Only the tar copy of it, and the second pass over the bag to create and checksum it,
+ * are avoided.  Sending payload files straight from scratch space would need the bagger
+ * to generate manifests without writing the bag, which it doesn't support.
+ *
+ * StreamingUploadCheck exercises the streaming upload against a real (or S3
+ * compatible) bucket.
+ */
+public class BagTransfer {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(BagTransfer.class);
+
+    private static final int DEFAULT_PART_MB = 64;
+
+    private static final int DEFAULT_PART_BUFFERS = 4;
+
+    /**
+     * Creates a BagTransfer configured from the ingest properties (the optional
+     * "streaming-upload", "upload-part-mb" and "upload-part-buffers" properties) and
+     * the aws credentials properties (the required "accessKey", "secretKey" and
+     * "bucketName" and the optional "s3-endpoint", which directs requests to an S3
+     * compatible service other than amazon's, for instance for testing).
+     */
+    public static BagTransfer create(Properties ingestProperties, Properties awsProperties) {
+        final AmazonS3Client s3 = new AmazonS3Client(new BasicAWSCredentials(getRequiredProperty(awsProperties, "accessKey"), getRequiredProperty(awsProperties, "secretKey")));
+        final String endpoint = getOptionalProperty(awsProperties, "s3-endpoint");
+        if (endpoint != null && endpoint.trim().length() > 0) {
+            s3.setEndpoint(endpoint.trim());
+            // stand-ins rarely have a DNS entry for each bucket
+            s3.setS3ClientOptions(new S3ClientOptions().withPathStyleAccess(true));
+        }
+        final String streaming = getOptionalProperty(ingestProperties, "streaming-upload");
+        final String partMb = getOptionalProperty(ingestProperties, "upload-part-mb");
+        final String partBuffers = getOptionalProperty(ingestProperties, "upload-part-buffers");
+        return new BagTransfer(s3, getRequiredProperty(awsProperties, "bucketName"),
+                streaming != null && Boolean.parseBoolean(streaming.trim()),
+                (partMb == null || partMb.trim().length() == 0 ? DEFAULT_PART_MB : Integer.parseInt(partMb.trim())) * 1024 * 1024,
+                partBuffers == null || partBuffers.trim().length() == 0 ? DEFAULT_PART_BUFFERS : Integer.parseInt(partBuffers.trim()));
+    }
+
+    private AmazonS3Client s3;
+
+    private String bucket;
+
+    private BagSubmitter submitter;
+
+    private boolean streaming;
+
+    private int partBytes;
+
+    private int partBuffers;
+
+    /**
+     * @param streaming true to stream bags directly into multipart uploads, false to
+     *                  write tar files and upload them with the BagSubmitter
+     * @param partBytes the size of each uploaded part when streaming
+     * @param partBuffers the number of parts held in memory (and uploaded at once) when
+     *                    streaming
+     */
+    public BagTransfer(AmazonS3Client s3, String bucket, boolean streaming, int partBytes, int partBuffers) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.submitter = new BagSubmitter(s3, bucket);
+        this.streaming = streaming;
+        this.partBytes = partBytes;
+        this.partBuffers = partBuffers;
+    }
+
+    /**
+     * Serializes the bag in the given directory, as a tar file or (when streaming) a
+     * directory to be tarred as it's transferred.
+     */
+    public BagSummary serialize(Fedora4APTrustBag bag, File outputDir) throws Exception {
+        final BagSummary bs = bag.serializeAPTrustBag(outputDir, !streaming);
+        LOGGER.debug(bs.getManifestCopy());
+        if (streaming) {
+            LOGGER.info(bs.getFile().getName() + " created, " + bs.getBagPayloadSize() + " payload bytes.");
+        } else {
+            LOGGER.info(bs.getFile().getName() + " created, " + bs.getFile().length()
+                    + " bytes with base64 checksum=" + bs.getBase64Checksum());
+        }
+        return bs;
+    }
+
+    /**
+     * Transfers a bag serialized by serialize().
+     * @param overwrite if false, a bag that already exists in the bucket isn't sent
+     */
+    public Result transfer(BagSummary bs, boolean overwrite) throws IOException {
+        if (!streaming) {
+            final BagSubmitter.TransferSummary ts = submitter.transferBag(bs, overwrite);
+            return new Result(ts.wasTransferred(), ts.getMessage(), ts.getEtag(), ts.getDuration(),
+                    bs.getFile().length(), bs.getBase64Checksum());
+        }
+        final String key = bs.getFile().getName() + ".tar";
+        if (!overwrite && exists(key)) {
+            return new Result(false, key + " already exists in " + bucket + ".", null, 0, 0, null);
+        }
+        final Result result = streamDirectory(bs.getFile(), key);
+        LOGGER.info(key + " streamed, " + result.getBagSize() + " bytes with base64 checksum=" + result.getBase64Checksum());
+        return result;
+    }
+
+    /**
+     * Tars the given directory into a multipart upload to the given key, replacing any
+     * object already there.  The configured part size is raised if the tar would
+     * otherwise need more parts than S3 allows.
+     */
+    Result streamDirectory(File dir, String key) throws IOException {
+        final long start = System.currentTimeMillis();
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("application/x-tar");
+        final long size = TarWriter.getArchiveSize(dir);
+        final int bytesPerPart = S3MultipartOutputStream.getPartBytes(size, partBytes);
+        if (bytesPerPart != partBytes) {
+            LOGGER.info(key + " (" + size + " bytes) will be sent in parts of " + bytesPerPart + " bytes rather than "
+                    + partBytes + " to stay within " + S3MultipartOutputStream.MAX_PARTS + " parts.");
+        }
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3, bucket, key, bytesPerPart, partBuffers, metadata);
+        try {
+            final TarWriter tar = new TarWriter(out);
+            tar.writeDirectory(dir);
+            tar.finish();
+            out.close();
+        } catch (IOException ex) {
+            out.abort();
+            throw ex;
+        } catch (RuntimeException ex) {
+            out.abort();
+            throw ex;
+        }
+        return new Result(true, null, out.getETag(), System.currentTimeMillis() - start,
+                out.getCount(), out.getBase64Checksum());
+    }
+
+    AmazonS3Client getClient() {
+        return s3;
+    }
+
+    String getBucket() {
+        return bucket;
+    }
+
+    int getPartBytes() {
+        return partBytes;
+    }
+
+    private boolean exists(String key) {
+        try {
+            s3.getObjectMetadata(bucket, key);
+            return true;
+        } catch (AmazonS3Exception ex) {
+            if (ex.getStatusCode() == 404) {
+                return false;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Deletes the local copy of a serialized bag.
+     */
+    public void discard(BagSummary bs) throws IOException {
+        if (bs.getFile().isDirectory()) {
+            FileUtils.deleteDirectory(bs.getFile());
+        } else {
+            bs.getFile().delete();
+        }
+    }
+
+    public static class Result {
+
+        private boolean transferred;
+
+        private String message;
+
+        private String etag;
+
+        private long duration;
+
+        private long bagSize;
+
+        private String base64Checksum;
+
+        private Result(boolean transferred, String message, String etag, long duration, long bagSize, String base64Checksum) {
+            this.transferred = transferred;
+            this.message = message;
+            this.etag = etag;
+            this.duration = duration;
+            this.bagSize = bagSize;
+            this.base64Checksum = base64Checksum;
+        }
+
+        public boolean wasTransferred() {
+            return transferred;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Gets the time the transfer took, in milliseconds.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Gets the size, in bytes, of the tar file that was sent.
+         */
+        public long getBagSize() {
+            return bagSize;
+        }
+
+        public String getBase64Checksum() {
+            return base64Checksum;
+        }
+    }
+}
@@ -8,27 +8,30 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.fcrepo.client.FcrepoOperationFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.s3.AmazonS3Client;
-
 import edu.virginia.lib.aptrust.RdfConstants;
 import edu.virginia.lib.aptrust.bags.APTrustInfo;
 import edu.virginia.lib.aptrust.bags.BagInfo;
 import edu.virginia.lib.aptrust.bags.BagSummary;
-import edu.virginia.lib.aptrust.bags.util.BagSubmitter;
-import edu.virginia.lib.aptrust.bags.util.BagSubmitter.TransferSummary;
 import edu.virginia.lib.aptrust.helper.Fedora4Client;
 import edu.virginia.lib.aptrust.helper.FusekiReader;
+import edu.virginia.lib.aptrust.helper.ScratchSpace;
+import edu.virginia.lib.aptrust.helper.SegmentedDownloader;
 
 public class Bagger {
 
@@ -44,19 +47,26 @@ public class Bagger {
 
     private FusekiReader triplestore;
 
-    private BagSubmitter submitter;
+    private BagTransfer transfer;
+
+    private BagPipeline pipeline;
+
+    private long quota;
 
     public Bagger() throws Exception {
         Properties ingestProperties = getProperties("ingest.properties");
 
         f4Client = new Fedora4Client(getOptionalProperty(ingestProperties, "f4-username"), getOptionalProperty(ingestProperties, "f4-password"), getRequiredProperty(ingestProperties, "f4-url"));
-        triplestore = new FusekiReader(getRequiredProperty(ingestProperties, "triplestore-url"));
+        triplestore = new FusekiReader(getRequiredProperty(ingestProperties, "triplestore-url"),
+                FusekiReader.getSlowQueryThreshold(getOptionalProperty(ingestProperties, "triplestore-slow-query-ms")));
+        ScratchSpace.configureDefault(ingestProperties, null);
+        SegmentedDownloader.configureDefault(ingestProperties);
+        Fedora4APTrustBag.configureDefaults(ingestProperties);
+        final String q = getOptionalProperty(ingestProperties, "aptrust-quota");
+        quota = q == null || q.trim().length() == 0 ? -1 : Long.parseLong(q.trim());
 
-        Properties p = getProperties("aws-credentials.properties");
-        AWSCredentials credentials = new BasicAWSCredentials(getRequiredProperty(p, "accessKey"), getRequiredProperty(p, "secretKey"));
-        AmazonS3Client amazonS3Client = new AmazonS3Client(credentials);
-
-        submitter = new BagSubmitter(amazonS3Client, getRequiredProperty(p, "bucketName"));
+        transfer = BagTransfer.create(ingestProperties, getProperties("aws-credentials.properties"));
+        pipeline = BagPipeline.create(ingestProperties, f4Client, triplestore, transfer);
 
         ingestLibra();
 
@@ -66,77 +76,120 @@ public class Bagger {
         // create bag
         final URI uri = new URI("http://fedora01.lib.virginia.edu:8080/fcrepo/rest/libra");
         Fedora4APTrustBag bag = new Fedora4APTrustBag(new BagInfo().sourceOrganization("virginia.edu"),
-                new APTrustInfo("Libra: Online Archive of University of Virginia Scholarship", APTrustInfo.CONSORTIA), uri, f4Client, triplestore, null);
+                new APTrustInfo("Libra: Online Archive of University of Virginia Scholarship", APTrustInfo.CONSORTIA), uri, f4Client, triplestore);
         LOGGER.debug("Creating and transferring bag for " + uri + " at " + new Date() + "...");
-        BagSummary bs = bag.serializeAPTrustBag(new File("output"), true);
-        LOGGER.debug(bs.getManifestCopy());
-        LOGGER.info(bs.getFile().getName() + " created, " + bs.getFile().length()
-                + " bytes with base64 checksum=" + bs.getBase64Checksum());
+        BagSummary bs = transfer.serialize(bag, new File("output"));
         
         // ingest bag
-        BagSubmitter.TransferSummary ts = submitter.transferBag(bs, OVERWRITE);
+        BagTransfer.Result ts = transfer.transfer(bs, OVERWRITE);
         if (ts.wasTransferred()) {
             createPremisEventForIngest(f4Client, triplestore, uri, bs, ts);
-            bs.getFile().delete();
+            transfer.discard(bs);
             LOGGER.info("Transferred in " + ts.getDuration() + " ms.");
         } else {
             LOGGER.warn(bs.getFile() + " not transferred!  " + ts.getMessage());
-            bs.getFile().delete();
+            transfer.discard(bs);
         }
     }
     
-    private void ingestWSLS(long quota) throws Exception {
+    /**
+     * Submits as many of the WSLS packages that haven't yet been sent as best fill the
+     * remaining quota.  Each package's payload size is predicted from the repository
+     * metadata first, so that only the packages that were chosen are bagged.  Packages
+     * whose size couldn't be predicted are bagged after those, and are skipped if they
+     * turn out not to fit.
+     */
+    private void ingestWSLS() throws Exception {
+        if (quota < 0) {
+            throw new RuntimeException("Required property \"aptrust-quota\" not found!");
+        }
         long currentUsage = getPayloadBytesSubmitted();
         LOGGER.info(currentUsage + " of " + quota + " bytes used.");
-        List<Map<String, String>> resultPage = getNextPageOfWSLSResultsToSubmit(100);
-        if (resultPage.size() == 0) {
+        final Map<URI, String> wslsIds = new LinkedHashMap<URI, String>();
+        for (Map<String, String> r : getWSLSResultsToSubmit()) {
+            final String uri = r.get("s");
+            if (hasBeenSent(uri)) {
+                LOGGER.warn("Skipping " + r.get("wslsid") + " " + uri + " since it was already sent!");
+            } else {
+                wslsIds.put(new URI(uri), r.get("wslsid"));
+            }
+        }
+        if (wslsIds.isEmpty()) {
             System.out.println("No items need to be sent to AP Trust.");
+            return;
         }
-        while (resultPage != null && resultPage.size() > 0) {
-            for (Map<String, String> r : resultPage) {
-                final String uri = r.get("s");
-                if (hasBeenSent(uri)) {
-                    LOGGER.warn("Skipping " + r.get("wslsid") + " " + uri + " since it was already sent!");
-                } else {
-                    try {
-                        LOGGER.info("Processing " + r.get("wslsid") + " " + uri);
-                        final String title = Fedora4Client.getFirstPropertyValue(
-                                f4Client.getAllProperties(new URI(uri + "/fcr:metadata")), new URI(uri),
-                                RdfConstants.DC_TITLE);
-                        Fedora4APTrustBag bag = new Fedora4APTrustBag(new BagInfo().sourceOrganization("virginia.edu"),
-                                new APTrustInfo(title, APTrustInfo.CONSORTIA), new URI(uri), f4Client, triplestore, null);
-
-                        LOGGER.debug("Creating and transferring bag for " + uri + " at " + new Date() + "...");
-                        BagSummary bs = bag.serializeAPTrustBag(new File("output"), true);
-                        LOGGER.debug(bs.getManifestCopy());
-                        LOGGER.info(bs.getFile().getName() + " created, " + bs.getFile().length()
-                                + " bytes with base64 checksum=" + bs.getBase64Checksum());
-                        if (bs.getBagPayloadSize() + currentUsage > quota) {
-                            LOGGER.info("Quota reached.");
-                            return;
-                        }
-                        // check bag size vs. current usage
-                        BagSubmitter.TransferSummary ts = submitter.transferBag(bs, OVERWRITE);
-                        if (ts.wasTransferred()) {
-                            createPremisEventForIngest(f4Client, triplestore, new URI(uri), bs, ts);
-                            currentUsage += bs.getBagPayloadSize();
-                            bs.getFile().delete();
-                            LOGGER.info("Transferred in " + ts.getDuration() + " ms (" + currentUsage
-                                    + " bytes used of " + quota + ")");
-                        } else {
-                            LOGGER.warn(bs.getFile() + " not transferred!  " + ts.getMessage());
-                            bs.getFile().delete();
-                        }
-                    } catch (RuntimeException ex) {
-                        LOGGER.error("Error with " + uri + ", skipping it... ", ex);
+
+        // predict each payload size, keeping only the size so that the heap doesn't grow
+        // with the backlog (the chosen packages' bags are created again when they're built)
+        final Map<URI, Future<Long>> predictions = new LinkedHashMap<URI, Future<Long>>();
+        final ExecutorService predictors = Executors.newFixedThreadPool(Fedora4APTrustBag.getDefaultStagingThreads());
+        try {
+            for (final Map.Entry<URI, String> e : wslsIds.entrySet()) {
+                predictions.put(e.getKey(), predictors.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        final long size = createWSLSBag(e.getKey()).predictPayloadSize();
+                        LOGGER.debug(e.getValue() + " " + e.getKey() + " payload predicted to be " + size + " bytes.");
+                        return size;
                     }
+                }));
+            }
+        } finally {
+            predictors.shutdown();
+        }
+        final Map<URI, Long> sizes = new LinkedHashMap<URI, Long>();
+        final List<URI> unknown = new ArrayList<URI>();
+        for (Map.Entry<URI, Future<Long>> e : predictions.entrySet()) {
+            try {
+                final long size = e.getValue().get();
+                if (size < 0) {
+                    unknown.add(e.getKey());
+                } else {
+                    sizes.put(e.getKey(), size);
                 }
+            } catch (ExecutionException ex) {
+                LOGGER.error("Error with " + wslsIds.get(e.getKey()) + " " + e.getKey() + ", skipping it... ", ex.getCause());
             }
-            resultPage = getNextPageOfWSLSResultsToSubmit(100);
         }
+        final List<URI> plan = QuotaPlanner.plan(sizes, quota - currentUsage);
+        long planned = 0;
+        for (URI uri : plan) {
+            planned += sizes.get(uri);
+        }
+        LOGGER.info("Planned " + plan.size() + " of " + sizes.size() + " packages (" + planned + " of "
+                + (quota - currentUsage) + " bytes remaining), and " + unknown.size() + " of unknown size.");
+        plan.addAll(unknown);
+
+        pipeline.setOverwrite(OVERWRITE);
+        pipeline.setQuota(currentUsage, quota);
+        final int sent = pipeline.run(new BagPipeline.Source() {
+            @Override
+            public List<URI> nextCandidates() throws Exception {
+                return plan;
+            }
+
+            @Override
+            public Fedora4APTrustBag createBag(URI uri) throws Exception {
+                LOGGER.info("Processing " + wslsIds.get(uri) + " " + uri);
+                LOGGER.debug("Creating and transferring bag for " + uri + " at " + new Date() + "...");
+                return createWSLSBag(uri);
+            }
+        });
+        if (sent == 0) {
+            System.out.println("No items were sent to AP Trust.");
+        }
+    }
+
+    private Fedora4APTrustBag createWSLSBag(URI uri) throws Exception {
+        final String title = Fedora4Client.getFirstPropertyValue(
+                f4Client.getAllProperties(new URI(uri + "/fcr:metadata")), uri,
+                RdfConstants.DC_TITLE);
+        Fedora4APTrustBag bag = new Fedora4APTrustBag(new BagInfo().sourceOrganization("virginia.edu"),
+                new APTrustInfo(title, APTrustInfo.CONSORTIA), uri, f4Client, triplestore);
+        return bag;
     }
 
-    public static void createPremisEventForIngest(final Fedora4Client f4Client, final FusekiReader triplestore, URI uri, BagSummary bs, TransferSummary ts)
+    public static void createPremisEventForIngest(final Fedora4Client f4Client, final FusekiReader triplestore, URI uri, BagSummary bs, BagTransfer.Result ts)
             throws FcrepoOperationFailedException, URISyntaxException, IOException {
         final URI eventURI = f4Client.createResource(uri.toString());
         LOGGER.info("Created event resource " + uri);
@@ -146,7 +199,7 @@ public class Bagger {
         f4Client.addURIProperty(eventURI, RdfConstants.PREMIS_HAS_EVENT_TYPE,
                 new URI("http://id.loc.gov/vocabulary/preservationEvents/ingestion"));
         f4Client.addDateProperty(eventURI, RdfConstants.PREMIS_HAS_EVENT_DATE, new Date());
-        f4Client.addIntegerProperty(eventURI, RdfConstants.PRES_BAG_SIZE, bs.getFile().length());
+        f4Client.addIntegerProperty(eventURI, RdfConstants.PRES_BAG_SIZE, ts.getBagSize());
         f4Client.addIntegerProperty(eventURI, RdfConstants.PRES_BAG_PAYLOAD_SIZE, bs.getBagPayloadSize());
         f4Client.addLiteralProperty(eventURI, RdfConstants.PRES_BAG_ID, ts.getEtag());
         final URI manifestURI = f4Client.createNonRDFResource(eventURI, bs.getManifestCopy(), "text/plain");
@@ -186,7 +239,7 @@ public class Bagger {
      * This queries the triplestore and returns only items that are eligible for submission and
      * have not yet been submitted (even if they were submitted and failed).
      */
-    private List<Map<String, String>> getNextPageOfWSLSResultsToSubmit(int pageSize) throws IOException {
+    private List<Map<String, String>> getWSLSResultsToSubmit() throws IOException {
         return triplestore.getQueryResponse("PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n"
                 + "PREFIX dc: <http://purl.org/dc/elements/1.1/>\n" + "SELECT DISTINCT ?s ?wslsid\n" + "WHERE {\n"
                 + "    { {\n"
@@ -197,6 +250,6 @@ public class Bagger {
                 + "      ?title <http://fedora.lib.virginia.edu/preservation#hasFile> ?s .\n"
                 + "      ?title <http://purl.org/dc/terms/rights> ?rights .\n" + "      ?title dc:identifier ?wslsid\n"
                 + "    } }\n" + "    MINUS {\n" + "      ?s <http://www.loc.gov/premis/rdf/v1#hasEvent> ?event\n"
-                + "    }\n" + "} \n" + "ORDER BY ?wslsid\n" + "LIMIT " + pageSize);
+                + "    }\n" + "} \n" + "ORDER BY ?wslsid");
     }
 }
@@ -1,19 +1,37 @@
 package edu.virginia.lib.aptrust.bag;
 
+import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getOptionalProperty;
+
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -30,9 +48,12 @@ import edu.virginia.lib.aptrust.RdfConstants;
 import edu.virginia.lib.aptrust.bags.APTrustBag;
 import edu.virginia.lib.aptrust.bags.APTrustInfo;
 import edu.virginia.lib.aptrust.bags.BagInfo;
+import edu.virginia.lib.aptrust.helper.DigestingOutputStream;
 import edu.virginia.lib.aptrust.helper.Fedora4Client;
 import edu.virginia.lib.aptrust.helper.FusekiReader;
 import edu.virginia.lib.aptrust.helper.HttpHelper;
+import edu.virginia.lib.aptrust.helper.ScratchSpace;
+import edu.virginia.lib.aptrust.helper.SegmentedDownloader;
 
 /**
  * Extends the basic APTrustBag to support bagging Fedora 4 resources produced using the AvalonIngest code.
@@ -47,24 +68,93 @@ public class Fedora4APTrustBag extends APTrustBag {
 
     final private static Logger LOGGER = LoggerFactory.getLogger(Fedora4APTrustBag.class);
 
+    /**
+     * The number of times a download is attempted before the bag is abandoned.
+     */
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+
+    private static final int DEFAULT_STAGING_THREADS = 4;
+
+    private static final int DEFAULT_PREFETCH_FILES = 4;
+
+    /**
+     * The size predicted for each file generated for the bag (the readme and seed list),
+     * whose actual size isn't known until it's written.  This errs well on the large
+     * side so that bags planned to fill a quota don't exceed it.
+     */
+    private static final long GENERATED_FILE_ALLOWANCE = 1024 * 1024;
+
+    private static int defaultStagingThreads = DEFAULT_STAGING_THREADS;
+
+    private static int defaultPrefetchFiles = DEFAULT_PREFETCH_FILES;
+
+    /**
+     * Configures the staging of payload files for bags created from now on from the
+     * optional "bag-staging-threads" and "bag-prefetch-files" properties.
+     */
+    public static synchronized void configureDefaults(Properties p) {
+        final String staging = getOptionalProperty(p, "bag-staging-threads");
+        final String prefetch = getOptionalProperty(p, "bag-prefetch-files");
+        defaultStagingThreads = staging == null || staging.trim().length() == 0 ? DEFAULT_STAGING_THREADS : Integer.parseInt(staging.trim());
+        defaultPrefetchFiles = prefetch == null || prefetch.trim().length() == 0 ? DEFAULT_PREFETCH_FILES : Integer.parseInt(prefetch.trim());
+    }
+
+    /**
+     * Gets the number of payload files each new bag resolves and downloads at once.
+     */
+    public static synchronized int getDefaultStagingThreads() {
+        return defaultStagingThreads;
+    }
+
+    private static synchronized int getDefaultPrefetchFiles() {
+        return defaultPrefetchFiles;
+    }
+
     private URI uri;
 
-    private List<File> tempFiles;
-    private List<File> payloadFiles;
+    /**
+     * The leases for every payload file currently in the working directory.
+     */
+    private Map<File, ScratchSpace.Lease> tempFiles = Collections.synchronizedMap(new HashMap<File, ScratchSpace.Lease>());
+    private LazyPayloadList payloadFiles;
 
     private Fedora4Client f4client;
 
     private FusekiReader triplestore;
 
-    private File workingDir;
+    /**
+     * A directory, leased from the scratch space, to which the files for this bag (and
+     * only this bag) are downloaded.  It is leased when the first file is staged and
+     * released once every staged file has been freed.
+     */
+    private ScratchSpace.Lease workingDir;
+
+    private int stagingThreads = getDefaultStagingThreads();
 
-    public Fedora4APTrustBag(BagInfo bagInfo, APTrustInfo aptrustInfo, URI fedora4uri, Fedora4Client f4client, FusekiReader triplestore, final File workingRoot) {
+    private int prefetchFiles = getDefaultPrefetchFiles();
+
+    private ExecutorService stagingPool;
+
+    public Fedora4APTrustBag(BagInfo bagInfo, APTrustInfo aptrustInfo, URI fedora4uri, Fedora4Client f4client, FusekiReader triplestore) {
         super(bagInfo, aptrustInfo);
         this.uri = fedora4uri;
         this.f4client = f4client;
         this.triplestore = triplestore;
-        workingDir = workingRoot == null ? new File("work") : new File(workingRoot, "work");
-        workingDir.mkdir();
+    }
+
+    /**
+     * Sets the number of payload files that are resolved and downloaded at once.
+     */
+    public void setStagingThreads(int stagingThreads) {
+        this.stagingThreads = stagingThreads;
+    }
+
+    /**
+     * Sets the number of payload files that are staged ahead of the one being written
+     * to the bag.  Only those files (and any not yet freed) occupy scratch space at once.
+     */
+    public void setPrefetchFiles(int prefetchFiles) {
+        this.prefetchFiles = prefetchFiles;
     }
 
     public static String getReadmeForURI(final URI uri, Fedora4Client f4client) throws FcrepoOperationFailedException, IOException {
@@ -83,14 +173,16 @@ public class Fedora4APTrustBag extends APTrustBag {
      * 2.  a fedora 3 export if the resource represented a single managed fedora 3 resource (data/exported-fedora-4-resource.xml)
      * 3.  all immediately contained binary files (data/filename)
      * 4.  all immediately contained external resources (data/pid.xml)   
+     *
+     * The returned list is lazy: the payload files are identified up front, but each is
+     * only downloaded when it (or one of the few before it) is requested, and deleted
+     * again once it has been freed.
      */
     @Override
     protected List<File> getPayloadFiles() throws Exception {
         if (payloadFiles != null) {
             return payloadFiles;
         }
-        payloadFiles = new ArrayList<File>();
-        tempFiles = new ArrayList<File>();
 
         // export resource to a temp file
         // currently there's no valid export on fedora 4.7
@@ -98,7 +190,8 @@ public class Fedora4APTrustBag extends APTrustBag {
         //payloadFiles.add(export);
         //tempFiles.add(export);
 
-        Model m = f4client.getAllProperties(uri);
+        final Model m = f4client.getAllProperties(uri);
+        final List<PayloadFile> entries = new ArrayList<PayloadFile>();
 
         if (Fedora4Client.hasType(m, uri.toString(), RdfConstants.EXTERNAL_RESOURCE_TYPE)) {
             /* Export External Content
@@ -109,9 +202,13 @@ public class Fedora4APTrustBag extends APTrustBag {
              */
             final String externalId = Fedora4Client.getFirstPropertyValue(m, uri, RdfConstants.EXTERNAL_ID);
             final String externalSystemId = Fedora4Client.getFirstPropertyValue(m, uri, RdfConstants.EXTERNAL_SYSTEM);
-            final File file = downloadURIToTempFile(triplestore.getFirstAndOnlyQueryResponse("SELECT ?t WHERE { <" + externalSystemId.toString() + "> <" + RdfConstants.DC_IDENTIFIER + "> ?t }").get("t") + "/objects/" + externalId + "/export?context=archive", FEDORA3_EXPORT);
-            payloadFiles.add(file);
-            tempFiles.add(file);
+            final String exportUrl = triplestore.getFirstAndOnlyQueryResponse("SELECT ?t WHERE { <" + externalSystemId.toString() + "> <" + RdfConstants.DC_IDENTIFIER + "> ?t }").get("t") + "/objects/" + externalId + "/export?context=archive";
+            entries.add(new PayloadFile(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    return downloadURIToTempFile(exportUrl, FEDORA3_EXPORT);
+                }
+            }, null).expectSizeOf(exportUrl));
         }
         
         // for ArchiveIt crawls, include the seed information from the collection
@@ -123,71 +220,403 @@ public class Fedora4APTrustBag extends APTrustBag {
                     "  <http://fedora4test.lib.virginia.edu:8080/fcrepo/rest/archiveIt/77/80/4e/85/77804e85-39b1-47a2-a3e4-77da384d6a8d/d8/e8/0c/a9/d8e80ca9-aa02-40b7-8e3e-4253756ccb73> <http://fedora.info/definitions/v4/repository#hasParent> ?collection .\n" + 
                     "  ?collection pres:hasWarcSeedList ?seedlist .\n" + 
                     "}").get("seedlist");
-            final File file = getNamedTempFile("collection-seed-list.csv");
-            FileOutputStream fos = new FileOutputStream(file);
-            try {
-                f4client.download(URI.create(seedListUrl), fos);
-            } finally {
-                fos.close();
+            entries.add(new PayloadFile(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    final ScratchSpace.Lease lease = getNamedTempFile("collection-seed-list.csv", 0);
+                    boolean staged = false;
+                    try {
+                        final FileOutputStream fos = new FileOutputStream(lease.getFile());
+                        try {
+                            f4client.download(URI.create(seedListUrl), fos);
+                        } finally {
+                            fos.close();
+                        }
+                        lease.updateSize();
+                        staged = true;
+                        return lease.getFile();
+                    } finally {
+                        if (!staged) {
+                            discard(lease);
+                        }
+                    }
+                }
+            }, null).expectSize(GENERATED_FILE_ALLOWANCE));
+        }
+
+        // identify any contained binaries, ExternalResource's or referenced local files (each of
+        // which takes several requests) concurrently, but keep them in order
+        final List<Future<PayloadFile>> resolved = new ArrayList<Future<PayloadFile>>();
+        URI nestedExternalSystemResourceURI = null;
+        try {
+            for (RDFNode n : f4client.getPropertyValues(uri, uri, RdfConstants.LDP_CONTAINS)) {
+                final URI containedUri = new URI(n.asResource().getURI());
+                resolved.add(getStagingPool().submit(new Callable<PayloadFile>() {
+                    @Override
+                    public PayloadFile call() throws Exception {
+                        return resolveContainedResource(containedUri);
+                    }
+                }));
+            }
+            for (Future<PayloadFile> result : resolved) {
+                final PayloadFile f;
+                try {
+                    f = result.get();
+                } catch (ExecutionException ex) {
+                    throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                }
+                if (f == null) {
+                    continue;
+                }
+                if (f.externalSystem != null) {
+                    if (nestedExternalSystemResourceURI == null) {
+                        nestedExternalSystemResourceURI = f.externalSystem;
+                    } else if (!nestedExternalSystemResourceURI.equals(f.externalSystem)) {
+                        throw new RuntimeException("Nested system mismatch for " + f.source + ": " + f.externalSystem + " != " + nestedExternalSystemResourceURI);
+                    }
+                }
+                entries.add(f);
+            }
+        } finally {
+            // abandon any resolution still under way if one has failed
+            for (Future<PayloadFile> result : resolved) {
+                result.cancel(true);
             }
-            payloadFiles.add(file);
-            tempFiles.add(file);
         }
+        
+        final String readmeURIString = Fedora4Client.getFirstPropertyValue(m, uri, RdfConstants.PRES_HAS_README);
+        if (readmeURIString == null) {
+            final URI nestedSystem = nestedExternalSystemResourceURI;
+            entries.add(new PayloadFile(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    return writeReadme(m, nestedSystem);
+                }
+            }, null).expectSize(GENERATED_FILE_ALLOWANCE));
+        } // otherwise the readme is already included in the payload files
 
+        payloadFiles = new LazyPayloadList(entries);
+        return payloadFiles;
+    }
 
-        // locate or export any contained binaries, ExternalResource's or referenced local files
-        URI nestedExternalSystemResourceURI = null;
-        for (RDFNode n : f4client.getPropertyValues(uri, uri, RdfConstants.LDP_CONTAINS)) {
-            final URI containedUri = new URI(n.asResource().getURI());
-            final URI metadataUri = new URI(containedUri.toString() + "/fcr:metadata");
-            Model containedM = f4client.getAllProperties(metadataUri);
-            if (Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.HAS_LOCAL_PATH) != null) {
-                payloadFiles.add(new File(Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.HAS_LOCAL_PATH)));
-            } else if (Fedora4Client.hasType(containedM, containedUri.toString(), RdfConstants.FEDORA_BINARY)) {
-                final String mimeType = f4client.getSingleRequiredPropertyValue(metadataUri, new URI(containedUri.toString()), HAS_MIME_TYPE);
-                if (mimeType.startsWith("message/external-body")) {
-                    // this is a convention we use to point to an external file... the path of that file is stored elsewhere...
-                    final String fileURI = f4client.getSingleRequiredPropertyValue(metadataUri, new URI(containedUri.toString()), RdfConstants.FILE_URI);
-                    File file = new File(new URI(fileURI));
-                    if (file.exists()) {
-                        payloadFiles.add(file);
-                    } else {
-                        LOGGER.warn("Unable to locate file " + file.getAbsolutePath() + ", downloading copy!");
-                        file = downloadURIToTempFile(containedUri.toString(), file.getName());
-                        payloadFiles.add(file);
-                        tempFiles.add(file);
+    /**
+     * Predicts the total size of the payload files from the repository metadata
+     * (premis:hasSize for binaries, the length of local files and the Content-Length
+     * reported for external content) without downloading any of them.  The generated
+     * readme and seed list are each counted as GENERATED_FILE_ALLOWANCE bytes.
+     * @return the predicted size in bytes, or -1 if the size of any payload file
+     *         couldn't be determined
+     */
+    public long predictPayloadSize() throws Exception {
+        getPayloadFiles();
+        final List<Future<Long>> sizes = new ArrayList<Future<Long>>();
+        try {
+            for (final PayloadFile f : payloadFiles.entries) {
+                sizes.add(getStagingPool().submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return f.getExpectedSize();
                     }
-                } else {
-                    final File file = downloadURIToTempFile(containedUri.toString(), f4client.getSingleRequiredPropertyValue(metadataUri, new URI(containedUri.toString()), RdfConstants.FILENAME));
-                    payloadFiles.add(file);
-                    tempFiles.add(file);
+                }));
+            }
+            long total = 0;
+            for (Future<Long> size : sizes) {
+                final long s;
+                try {
+                    s = size.get();
+                } catch (ExecutionException ex) {
+                    throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
                 }
-            } else if (Fedora4Client.hasType(containedM,  containedUri.toString(), RdfConstants.EXTERNAL_RESOURCE_TYPE)) {
-                final String externalId = Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.EXTERNAL_ID);
-                final String externalSystemId = Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.EXTERNAL_SYSTEM);
-                final String dcIdentifier = Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.DC_IDENTIFIER);
-                if (nestedExternalSystemResourceURI == null) {
-                    nestedExternalSystemResourceURI = new URI(externalSystemId);
-                } else if (!nestedExternalSystemResourceURI.equals(new URI(externalSystemId))) {
-                    throw new RuntimeException("Nested system mismatch for " + containedUri + ": " + externalSystemId + " != " + nestedExternalSystemResourceURI);
+                if (s < 0) {
+                    return -1;
                 }
-                if (!externalId.startsWith("http")) {
-                    final File file = downloadURIToTempFile(triplestore.getFirstAndOnlyQueryResponse("SELECT ?t WHERE { <" + externalSystemId.toString() + "> <" + RdfConstants.DC_IDENTIFIER + "> ?t }").get("t") + "/objects/" + externalId + "/export?context=archive", externalId + ".xml");
-                    payloadFiles.add(file);
-                    tempFiles.add(file);
+                total += s;
+            }
+            return total;
+        } finally {
+            for (Future<Long> size : sizes) {
+                size.cancel(true);
+            }
+            // the bag may never be serialized, so don't leave the staging threads behind
+            boolean staged = false;
+            for (PayloadFile f : payloadFiles.entries) {
+                staged |= f.isStaged();
+            }
+            if (!staged) {
+                releaseWorkingDirectory();
+            }
+        }
+    }
+
+    /**
+     * Determines how to get the payload file for a resource contained by the one being
+     * bagged.
+     * @return the payload file, or null if the resource isn't included in the bag
+     */
+    private PayloadFile resolveContainedResource(final URI containedUri) throws Exception {
+        final URI metadataUri = new URI(containedUri.toString() + "/fcr:metadata");
+        Model containedM = f4client.getAllProperties(metadataUri);
+        if (Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.HAS_LOCAL_PATH) != null) {
+            return new PayloadFile(new File(Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.HAS_LOCAL_PATH)));
+        } else if (Fedora4Client.hasType(containedM, containedUri.toString(), RdfConstants.FEDORA_BINARY)) {
+            final String mimeType = f4client.getSingleRequiredPropertyValue(metadataUri, new URI(containedUri.toString()), HAS_MIME_TYPE);
+            if (mimeType.startsWith("message/external-body")) {
+                // this is a convention we use to point to an external file... the path of that file is stored elsewhere...
+                final String fileURI = f4client.getSingleRequiredPropertyValue(metadataUri, new URI(containedUri.toString()), RdfConstants.FILE_URI);
+                final File file = new File(new URI(fileURI));
+                if (file.exists()) {
+                    return new PayloadFile(file);
                 } else {
-                    final File file = downloadURIToTempFile(externalId, dcIdentifier);
-                    payloadFiles.add(file);
-                    tempFiles.add(file);
+                    LOGGER.warn("Unable to locate file " + file.getAbsolutePath() + ", downloading copy!");
+                    return new PayloadFile(new Callable<File>() {
+                        @Override
+                        public File call() throws Exception {
+                            return downloadURIToTempFile(containedUri.toString(), file.getName());
+                        }
+                    }, null).expectSizeOf(containedUri.toString());
                 }
             } else {
-                LOGGER.info("Skipping contained resource " + containedUri + " because it wasn't binary.");
+                final String filename = f4client.getSingleRequiredPropertyValue(metadataUri, new URI(containedUri.toString()), RdfConstants.FILENAME);
+                final String size = Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.PREMIS_HAS_SIZE);
+                return new PayloadFile(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        return downloadURIToTempFile(containedUri.toString(), filename);
+                    }
+                }, null).expectSize(size == null ? -1 : Long.parseLong(size));
+            }
+        } else if (Fedora4Client.hasType(containedM,  containedUri.toString(), RdfConstants.EXTERNAL_RESOURCE_TYPE)) {
+            final String externalId = Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.EXTERNAL_ID);
+            final String externalSystemId = Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.EXTERNAL_SYSTEM);
+            final String dcIdentifier = Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.DC_IDENTIFIER);
+            if (!externalId.startsWith("http")) {
+                final String exportUrl = triplestore.getFirstAndOnlyQueryResponse("SELECT ?t WHERE { <" + externalSystemId.toString() + "> <" + RdfConstants.DC_IDENTIFIER + "> ?t }").get("t") + "/objects/" + externalId + "/export?context=archive";
+                return new PayloadFile(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        return downloadURIToTempFile(exportUrl, externalId + ".xml");
+                    }
+                }, new URI(externalSystemId), containedUri).expectSizeOf(exportUrl);
+            } else {
+                // warcs (and any other external files whose checksum was recorded) are verified
+                final String md5 = Fedora4Client.getFirstPropertyValue(containedM, containedUri, RdfConstants.MD5_HASH);
+                return new PayloadFile(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        return downloadURIToTempFile(externalId, dcIdentifier, md5);
+                    }
+                }, new URI(externalSystemId), containedUri).expectSizeOf(externalId);
             }
+        } else {
+            LOGGER.info("Skipping contained resource " + containedUri + " because it wasn't binary.");
+            return null;
         }
-        
-        addReadme(m, nestedExternalSystemResourceURI);
+    }
 
-        return payloadFiles;
+    /**
+     * A payload file, which is either an existing file or one that is staged (written
+     * to the working directory) on demand and may be freed and staged again.
+     */
+    private class PayloadFile {
+
+        /**
+         * The existing file, or the staged file once staging is complete.
+         */
+        private File file;
+
+        /**
+         * Stages the file, or null for an existing file.
+         */
+        private Callable<File> stager;
+
+        /**
+         * The staging of the file, if it has been started and the file not since freed.
+         */
+        private Future<File> staging;
+
+        /**
+         * The external system the file was exported from, if it represents a nested
+         * external resource.
+         */
+        private URI externalSystem;
+
+        private URI source;
+
+        /**
+         * The size in bytes the file is expected to have, or -1 if it isn't known.
+         */
+        private long expectedSize = -1;
+
+        /**
+         * A URL whose Content-Length gives the expected size, if it isn't known.
+         */
+        private String expectedSizeUrl;
+
+        public PayloadFile(File existing) {
+            this.file = existing;
+            this.expectedSize = existing.length();
+        }
+
+        public PayloadFile(Callable<File> stager, URI externalSystem) {
+            this(stager, externalSystem, null);
+        }
+
+        public PayloadFile(Callable<File> stager, URI externalSystem, URI source) {
+            this.stager = stager;
+            this.externalSystem = externalSystem;
+            this.source = source;
+        }
+
+        public PayloadFile expectSize(long size) {
+            this.expectedSize = size;
+            return this;
+        }
+
+        public PayloadFile expectSizeOf(String url) {
+            this.expectedSizeUrl = url;
+            return this;
+        }
+
+        /**
+         * Gets the expected size of the file, asking for the Content-Length of the content
+         * it's staged from if necessary, or -1 if it can't be determined.
+         */
+        public long getExpectedSize() throws IOException {
+            if (expectedSize == -1 && expectedSizeUrl != null) {
+                expectedSize = HttpHelper.getContentLength(expectedSizeUrl);
+            }
+            return expectedSize;
+        }
+
+        /**
+         * Starts staging the file in the background, unless it is already staged (or
+         * being staged).
+         */
+        public synchronized Future<File> stage() {
+            if (stager != null && staging == null) {
+                staging = getStagingPool().submit(stager);
+            }
+            return staging;
+        }
+
+        /**
+         * Gets the file, waiting for it to be staged if necessary.
+         */
+        public File get() {
+            final Future<File> f;
+            synchronized (this) {
+                if (stager == null) {
+                    return file;
+                }
+                f = stage();
+            }
+            try {
+                final File staged = f.get();
+                synchronized (this) {
+                    if (staging == f) {
+                        file = staged;
+                    }
+                }
+                return staged;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                synchronized (this) {
+                    // so that a later request tries again
+                    if (staging == f) {
+                        staging = null;
+                    }
+                }
+                throw new RuntimeException("Unable to stage payload file" + (source != null ? " for " + source : "") + "!", ex.getCause());
+            }
+        }
+
+        /**
+         * Forgets the staged file if it is the given one, so that it will be staged again
+         * if requested again.
+         */
+        public synchronized void free(File freed) {
+            if (stager != null && freed.equals(file)) {
+                staging = null;
+                file = null;
+            }
+        }
+
+        public synchronized boolean isStaged() {
+            return staging != null;
+        }
+    }
+
+    /**
+     * A list of payload files that stages each file as it's requested and then starts
+     * staging the next few (see setPrefetchFiles()) in anticipation of their being
+     * requested in turn.  The requested file is always staged before any others, and
+     * files are only prefetched while they fit in the scratch space that remains, so
+     * that prefetched files can never hold the space the requested one is waiting for.
+     */
+    private class LazyPayloadList extends AbstractList<File> {
+
+        private List<PayloadFile> entries;
+
+        public LazyPayloadList(List<PayloadFile> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public File get(int index) {
+            final File file = entries.get(index).get();
+            prefetch(index + 1);
+            return file;
+        }
+
+        /**
+         * Starts staging the files from the given index onward, in order, stopping at
+         * the first that wouldn't fit in the available scratch space.
+         */
+        private void prefetch(int from) {
+            try {
+                long available = ScratchSpace.getDefault().getAvailableBytes();
+                for (int i = from; i < from + prefetchFiles && i < entries.size(); i ++) {
+                    final PayloadFile next = entries.get(i);
+                    if (next.stager == null || next.isStaged()) {
+                        // existing, or already staged (or being staged)
+                        continue;
+                    }
+                    final long size = Math.max(0, next.getExpectedSize());
+                    if (size > available) {
+                        return;
+                    }
+                    available -= size;
+                    next.stage();
+                }
+            } catch (IOException ex) {
+                // it will be staged when it's requested
+                LOGGER.debug("Unable to prefetch payload files.", ex);
+            }
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+    }
+
+    private synchronized ExecutorService getStagingPool() {
+        if (stagingPool == null) {
+            stagingPool = Executors.newFixedThreadPool(stagingThreads, new ThreadFactory() {
+                private AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    // daemon threads so that an abandoned bag doesn't keep the JVM alive
+                    Thread t = new Thread(r, "bag-staging-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return stagingPool;
     }
 
     private static String getReadMeText(final URI uri, Model rdfProperties, URI nestedExternalSystemResourceURI) {
@@ -206,14 +635,9 @@ public class Fedora4APTrustBag extends APTrustBag {
         
     }
     
-    private void addReadme(Model rdfProperties, URI nestedExternalSystemResourceURI) throws IOException, FcrepoOperationFailedException, URISyntaxException {
-        final String readmeURIString = Fedora4Client.getFirstPropertyValue(rdfProperties, uri, RdfConstants.PRES_HAS_README);
-        if (readmeURIString != null) {
-            // readme is already included in the payload files
-            return;
-        }
-
-        File readmeFile = new File(workingDir, "readme.txt");
+    private File writeReadme(Model rdfProperties, URI nestedExternalSystemResourceURI) throws IOException, FcrepoOperationFailedException, URISyntaxException, InterruptedException {
+        final ScratchSpace.Lease readme = getNamedTempFile("readme.txt", 0);
+        final File readmeFile = readme.getFile();
         PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(readmeFile)));
         try {
             pw.print(getReadMeText(uri, rdfProperties, nestedExternalSystemResourceURI));
@@ -266,8 +690,8 @@ public class Fedora4APTrustBag extends APTrustBag {
         } finally {
             pw.close();
         }
-        payloadFiles.add(readmeFile);
-        tempFiles.add(readmeFile);
+        readme.updateSize();
+        return readmeFile;
     }
     
     public static final String bagNameFromURI(final URI uri) {
@@ -345,51 +769,186 @@ public class Fedora4APTrustBag extends APTrustBag {
         }
     }
 
-    private File getNamedTempFile(String filename) {
-        File export = new File(workingDir, filename);
-        export.getParentFile().mkdirs();
-        if (export.exists()) {
-            throw new RuntimeException("File already exists! " + export.getAbsolutePath());
+    /**
+     * Leases a file with the given name in this bag's working directory, waiting if
+     * necessary until the given number of bytes of scratch space are available.
+     */
+    private ScratchSpace.Lease getNamedTempFile(String filename, long expectedBytes) throws IOException, InterruptedException {
+        final ScratchSpace.Lease dir;
+        synchronized (this) {
+            if (workingDir == null) {
+                workingDir = ScratchSpace.getDefault().leaseDirectory("bag-" + getItemId());
+            }
+            dir = workingDir;
         }
-        return export;
+        final ScratchSpace.Lease lease = ScratchSpace.getDefault().lease(dir, filename, expectedBytes);
+        tempFiles.put(lease.getFile(), lease);
+        return lease;
+    }
+
+    /**
+     * Deletes a file that couldn't be staged.
+     */
+    private void discard(ScratchSpace.Lease lease) {
+        tempFiles.remove(lease.getFile());
+        lease.release();
     }
     
-    private File downloadURIToTempFile(String url, String filename) throws IOException, URISyntaxException {
-        File export = null;
+    private File downloadURIToTempFile(String url, String filename) throws IOException, URISyntaxException, InterruptedException {
+        return downloadURIToTempFile(url, filename, null);
+    }
+
+    /**
+     * Downloads the content at the given URL to a file in the working directory.
+     * Downloads that fail or are truncated are retried, up to MAX_DOWNLOAD_ATTEMPTS
+     * in all.
+     * @param expectedMD5 if non-null, the MD5 checksum the content must have; downloads
+     *                    that don't match it are also retried, and if none match an
+     *                    exception is thrown so that no bag is built around corrupt
+     *                    content
+     */
+    private File downloadURIToTempFile(String url, String filename, String expectedMD5) throws IOException, URISyntaxException, InterruptedException {
+        // one HEAD request gives both the length and whether a segmented download is possible
+        final HttpHelper.HeadResult head = HttpHelper.head(url);
+        final long length = head.getContentLength();
+        ScratchSpace.Lease export = null;
         if (filename == null) {
             final URI uri = new URI(url);
-            export = getNamedTempFile(uri.getHost() + "-" + uri.getPort() + "-" + uri.getPath());
+            export = getNamedTempFile(uri.getHost() + "-" + uri.getPort() + "-" + uri.getPath(), length);
         } else {
-            export = getNamedTempFile(filename);
-        }
-        if (export.exists()) {
-            throw new RuntimeException("File already exists! " + export.getAbsolutePath());
+            export = getNamedTempFile(filename, length);
         }
-        FileOutputStream fos = new FileOutputStream(export);
+        boolean staged = false;
         try {
-            HttpHelper.getContentAtURL(url, fos);
+            fetchVerified(url, export.getFile(), head, expectedMD5);
+            staged = true;
         } finally {
-            fos.close();
+            if (!staged) {
+                discard(export);
+            }
+        }
+        export.updateSize();
+        return export.getFile();
+    }
+
+    private void fetchVerified(String url, File file, HttpHelper.HeadResult head, String expectedMD5) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt ++) {
+            final DigestingOutputStream dos;
+            try {
+                dos = download(url, file, head, expectedMD5 != null);
+            } catch (IOException ex) {
+                if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                    throw ex;
+                }
+                LOGGER.warn("Download " + attempt + " of " + url + " failed, retrying.", ex);
+                continue;
+            }
+            if (expectedMD5 == null) {
+                return;
+            } else if (expectedMD5.equalsIgnoreCase(dos.getMD5())) {
+                LOGGER.debug("Verified " + url + " (" + dos.getCount() + " bytes, md5 " + dos.getMD5() + ").");
+                return;
+            } else if (attempt >= MAX_DOWNLOAD_ATTEMPTS) {
+                throw new RuntimeException("Content downloaded from " + url + " has an MD5 of " + dos.getMD5()
+                        + " rather than the recorded " + expectedMD5 + " (after " + attempt + " attempts)!");
+            } else {
+                LOGGER.warn("Download " + attempt + " of " + url + " has an MD5 of " + dos.getMD5() + " rather than "
+                        + expectedMD5 + ", retrying.");
+            }
         }
-        return export;
     }
 
-    private File exportF4ResouceToTempFile(String url, String filename) throws IOException, URISyntaxException, FcrepoOperationFailedException {
-        File export = new File(workingDir, filename != null ? filename : URLEncoder.encode(url, "UTF-8"));
-        FileOutputStream fos = new FileOutputStream(export);
+    /**
+     * Downloads the content at the given URL to the given file, in parallel segments
+     * if it's large enough (see SegmentedDownloader).
+     * @param head the result of a HEAD request for the URL
+     * @param digestRequired if true, the digests of the content are computed and
+     *                       returned; otherwise none are computed and null is returned
+     */
+    private static DigestingOutputStream download(String url, File file, HttpHelper.HeadResult head, boolean digestRequired) throws IOException, InterruptedException {
+        final long length = head.getContentLength();
+        final DigestingOutputStream dos;
+        if (SegmentedDownloader.getDefault().download(url, file, head)) {
+            if (!digestRequired) {
+                // the segmented download has already written exactly length bytes
+                return null;
+            }
+            // the segments arrive out of order, so the digests are computed from the file
+            dos = new DigestingOutputStream(new NullOutputStream());
+            final FileInputStream fis = new FileInputStream(file);
+            try {
+                IOUtils.copy(fis, dos);
+            } finally {
+                fis.close();
+            }
+        } else {
+            final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            dos = digestRequired ? new DigestingOutputStream(out) : null;
+            try {
+                HttpHelper.getContentAtURL(url, dos != null ? dos : out);
+            } finally {
+                if (dos != null) {
+                    dos.close();
+                } else {
+                    out.close();
+                }
+            }
+            if (length >= 0 && file.length() != length) {
+                throw new IOException("Downloaded " + file.length() + " bytes from " + url + " rather than " + length + "!");
+            }
+        }
+        return dos;
+    }
+
+    private File exportF4ResouceToTempFile(String url, String filename) throws IOException, URISyntaxException, FcrepoOperationFailedException, InterruptedException {
+        final ScratchSpace.Lease export = getNamedTempFile(filename != null ? filename : URLEncoder.encode(url, "UTF-8"), 0);
+        FileOutputStream fos = new FileOutputStream(export.getFile());
         try {
             f4client.export(uri, fos, true, true);
         } finally {
             fos.close();
         }
-        return export;
+        export.updateSize();
+        return export.getFile();
     }
 
+    /**
+     * Deletes the given payload file if it was staged.  Once no staged files remain,
+     * the working directory is released too.
+     */
     @Override
     protected void freePayloadFile(File file) throws Exception {
-        for (File f : this.tempFiles) {
-            LOGGER.debug("Deleting " + f.getAbsolutePath() + "");
-            f.delete();
+        final ScratchSpace.Lease lease = tempFiles.remove(file);
+        if (lease != null) {
+            LOGGER.debug("Deleting " + lease.getFile().getAbsolutePath() + "");
+            lease.release();
+        }
+        boolean outstanding = false;
+        if (payloadFiles != null) {
+            for (PayloadFile f : payloadFiles.entries) {
+                f.free(file);
+                outstanding |= f.isStaged();
+            }
+        }
+        if (!outstanding) {
+            releaseWorkingDirectory();
+        }
+    }
+
+    private synchronized void releaseWorkingDirectory() {
+        synchronized (tempFiles) {
+            for (ScratchSpace.Lease lease : tempFiles.values()) {
+                lease.release();
+            }
+            tempFiles.clear();
+        }
+        if (workingDir != null) {
+            workingDir.release();
+            workingDir = null;
+        }
+        if (stagingPool != null) {
+            stagingPool.shutdown();
+            stagingPool = null;
         }
     }
 
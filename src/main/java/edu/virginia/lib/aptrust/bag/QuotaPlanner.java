@@ -0,0 +1,125 @@
+package edu.virginia.lib.aptrust.bag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses which of a set of packages to bag so that their (predicted) sizes fill the
+ * remaining quota as completely as possible without exceeding it.  This is the subset
+ * sum problem, solved exactly (by dynamic programming) over sizes rounded up to a unit
+ * of 1/100000th of the quota, so the chosen packages never exceed the quota but may
+ * fall a little short of the best possible fill; a largest-first greedy fill is also
+ * tried, and whichever fills more is used.
+ */
+public class QuotaPlanner {
+
+    private static final int RESOLUTION = 100000;
+
+    /**
+     * @param sizes the size in bytes of each candidate package, in the order in which
+     *              they should be bagged
+     * @param capacity the number of bytes that may be used
+     * @return the chosen packages, in their original order
+     */
+    public static <T> List<T> plan(Map<T, Long> sizes, long capacity) {
+        final List<T> candidates = new ArrayList<T>(sizes.keySet());
+        final int n = candidates.size();
+        final long[] size = new long[n];
+        long total = 0;
+        for (int i = 0; i < n; i ++) {
+            size[i] = sizes.get(candidates.get(i));
+            total += size[i];
+        }
+        if (total <= capacity) {
+            return candidates;
+        }
+        if (capacity <= 0) {
+            return new ArrayList<T>();
+        }
+        final boolean[] packed = pack(size, capacity);
+        final boolean[] greedy = greedy(size, capacity);
+        final boolean[] chosen = sum(size, greedy) > sum(size, packed) ? greedy : packed;
+        final List<T> plan = new ArrayList<T>();
+        for (int i = 0; i < n; i ++) {
+            if (chosen[i]) {
+                plan.add(candidates.get(i));
+            }
+        }
+        return plan;
+    }
+
+    private static boolean[] pack(long[] size, long capacity) {
+        final int n = size.length;
+        final long unit = Math.max(1, (capacity + RESOLUTION - 1) / RESOLUTION);
+        final int slots = (int) (capacity / unit);
+        // rounding sizes up (and the capacity down) keeps the real total within the quota
+        final int[] weight = new int[n];
+        for (int i = 0; i < n; i ++) {
+            weight[i] = (int) Math.min(slots + 1, (size[i] + unit - 1) / unit);
+        }
+        // reachedBy[s] is the item whose addition first reached a total of s slots (or
+        // n for the empty set); following these back always leads to earlier items
+        final int[] reachedBy = new int[slots + 1];
+        Arrays.fill(reachedBy, -1);
+        reachedBy[0] = n;
+        final boolean[] chosen = new boolean[n];
+        for (int i = 0; i < n; i ++) {
+            if (weight[i] == 0) {
+                // empty packages cost nothing
+                chosen[i] = true;
+                continue;
+            }
+            for (int s = slots; s >= weight[i]; s --) {
+                if (reachedBy[s] == -1 && reachedBy[s - weight[i]] != -1) {
+                    reachedBy[s] = i;
+                }
+            }
+        }
+        int s = slots;
+        while (reachedBy[s] == -1) {
+            s --;
+        }
+        while (s > 0) {
+            final int i = reachedBy[s];
+            chosen[i] = true;
+            s -= weight[i];
+        }
+        return chosen;
+    }
+
+    private static boolean[] greedy(final long[] size, long capacity) {
+        final List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < size.length; i ++) {
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(size[i2], size[i1]);
+            }
+        });
+        final boolean[] chosen = new boolean[size.length];
+        long remaining = capacity;
+        for (int i : order) {
+            if (size[i] <= remaining) {
+                chosen[i] = true;
+                remaining -= size[i];
+            }
+        }
+        return chosen;
+    }
+
+    private static long sum(long[] size, boolean[] chosen) {
+        long total = 0;
+        for (int i = 0; i < size.length; i ++) {
+            if (chosen[i]) {
+                total += size[i];
+            }
+        }
+        return total;
+    }
+}
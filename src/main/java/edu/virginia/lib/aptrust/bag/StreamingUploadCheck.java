@@ -0,0 +1,131 @@
+package edu.virginia.lib.aptrust.bag;
+
+import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getProperties;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.model.S3Object;
+
+import edu.virginia.lib.aptrust.helper.DigestingOutputStream;
+import edu.virginia.lib.aptrust.helper.ScratchSpace;
+import edu.virginia.lib.aptrust.helper.TarWriter;
+
+/**
+ * Checks the streaming upload (see BagTransfer) end to end: a small directory tree,
+ * including a file that spans several parts and a path too long for a plain ustar
+ * name, is streamed into the bucket configured in aws-credentials.properties and
+ * downloaded again, and the object is compared with the same tree tarred locally.
+ * The object is deleted afterwards.
+ *
+ * Point "s3-endpoint" at an S3 compatible stand-in (such as a local MinIO server,
+ * with a bucket created for the purpose) to run this without touching the AP Trust
+ * receiving bucket:
+ *
+ * mvn compile exec:java -Dexec.mainClass=edu.virginia.lib.aptrust.bag.StreamingUploadCheck
+ */
+public class StreamingUploadCheck {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(StreamingUploadCheck.class);
+
+    public static void main(String [] args) throws Exception {
+        final Properties ingestProperties = getProperties("ingest.properties");
+        ScratchSpace.configureDefault(ingestProperties, null);
+        final BagTransfer transfer = BagTransfer.create(ingestProperties, getProperties("aws-credentials.properties"));
+        final ScratchSpace.Lease dir = ScratchSpace.getDefault().leaseDirectory("streaming-check");
+        try {
+            final File root = new File(dir.getFile(), "streaming-upload-check");
+            writeTree(root, transfer.getPartBytes());
+            check(transfer, root, "streaming-upload-check-" + UUID.randomUUID() + ".tar");
+        } finally {
+            dir.release();
+        }
+    }
+
+    private static void writeTree(File root, int partBytes) throws IOException {
+        final File data = new File(root, "data");
+        data.mkdirs();
+        writeText(new File(root, "bagit.txt"), "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n");
+        new File(data, "empty.txt").createNewFile();
+        final StringBuilder longName = new StringBuilder();
+        while (longName.length() < 120) {
+            longName.append("nested-directory-name/");
+        }
+        final File nested = new File(data, longName + "file.txt");
+        nested.getParentFile().mkdirs();
+        writeText(nested, "nested\n");
+        // more than two parts, and not a multiple of the tar block size
+        final Random random = new Random(0);
+        final byte[] buffer = new byte[64 * 1024];
+        final OutputStream out = new FileOutputStream(new File(data, "large.bin"));
+        try {
+            long remaining = partBytes * 2L + 12345;
+            while (remaining > 0) {
+                random.nextBytes(buffer);
+                final int length = (int) Math.min(buffer.length, remaining);
+                out.write(buffer, 0, length);
+                remaining -= length;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            IOUtils.write(text, out, "UTF-8");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void check(BagTransfer transfer, File root, String key) throws IOException, DecoderException {
+        final DigestingOutputStream local = new DigestingOutputStream(new NullOutputStream());
+        final TarWriter tar = new TarWriter(local);
+        tar.writeDirectory(root);
+        tar.finish();
+        local.close();
+
+        final BagTransfer.Result result = transfer.streamDirectory(root, key);
+        try {
+            LOGGER.info("Streamed " + result.getBagSize() + " bytes to " + key + " in " + result.getDuration() + " ms.");
+            final DigestingOutputStream remote = new DigestingOutputStream(new NullOutputStream());
+            final S3Object object = transfer.getClient().getObject(transfer.getBucket(), key);
+            final InputStream in = object.getObjectContent();
+            try {
+                IOUtils.copy(in, remote);
+            } finally {
+                in.close();
+            }
+            remote.close();
+
+            final String localChecksum = Base64.encodeBase64String(Hex.decodeHex(local.getMD5().toCharArray()));
+            if (result.getBagSize() != local.getCount() || !localChecksum.equals(result.getBase64Checksum())) {
+                throw new RuntimeException("The streamed tar (" + result.getBagSize() + " bytes, md5 " + result.getBase64Checksum()
+                        + ") differs from the local tar (" + local.getCount() + " bytes, md5 " + localChecksum + ")!");
+            }
+            if (remote.getCount() != local.getCount() || !remote.getMD5().equals(local.getMD5())) {
+                throw new RuntimeException("The stored object (" + remote.getCount() + " bytes, md5 " + remote.getMD5()
+                        + ") differs from the local tar (" + local.getCount() + " bytes, md5 " + local.getMD5() + ")!");
+            }
+            LOGGER.info("The stored object matches the local tar (" + local.getCount() + " bytes, md5 " + local.getMD5() + ").");
+        } finally {
+            transfer.getClient().deleteObject(transfer.getBucket(), key);
+        }
+    }
+}
@@ -2,38 +2,39 @@ package edu.virginia.lib.aptrust.helper;
 
 import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getRequiredProperty;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 
 public class ArchiveItClient {
 
-    public static void main(String [] args) throws IOException, IllegalStateException, ParserConfigurationException, SAXException, XPathExpressionException {
+    public static void main(String [] args) throws Exception {
         Properties p = new Properties();
         FileInputStream fis = new FileInputStream("archive-it-credentials.properties");
         try {
@@ -53,12 +54,25 @@ public class ArchiveItClient {
     }
     
     final private static Logger LOGGER = LoggerFactory.getLogger(ArchiveItClient.class);
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    private static final String ETAG = "etag";
+
+    private static final String LAST_MODIFIED = "last-modified";
+
+    private static final String SHA256 = "sha256";
     
     private String username;
     
     private String password;
     
     private String baseUrl;
+
+    /**
+     * If non-null, the directory in which listings are cached.
+     */
+    private File cacheDirectory;
     
     public ArchiveItClient(final String username, final String password) {
         this.username = username;
@@ -70,15 +84,42 @@ public class ArchiveItClient {
         return this.baseUrl;
     }
     
-    public List<Crawl> getCrawls(final String collectionId) throws IllegalStateException, IOException, ParserConfigurationException, SAXException, XPathExpressionException {
+    public static interface CrawlHandler {
+
+        /**
+         * Invoked for each crawl, in the order listed, as soon as it has been read.
+         */
+        public void handleCrawl(Crawl crawl) throws Exception;
+    }
+
+    public List<Crawl> getCrawls(final String collectionId) throws IOException, XMLStreamException {
         final List<Crawl> results = new ArrayList<Crawl>();
-        String url = baseUrl + "?c=" + collectionId;
-        
-        // fetch and parse the page
-        Document doc = null;
+        try {
+            processCrawls(collectionId, new CrawlHandler() {
+                @Override
+                public void handleCrawl(Crawl crawl) {
+                    results.add(crawl);
+                }
+            });
+        } catch (IOException | XMLStreamException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            // not thrown by our handler
+            throw new RuntimeException(ex);
+        }
+        return results;
+    }
+
+    /**
+     * Fetches the listing of the given collection and passes each crawl to the given
+     * handler as it is parsed from the response.  Only the current crawl is held in
+     * memory.
+     */
+    public void processCrawls(final String collectionId, final CrawlHandler handler) throws Exception {
+        final String url = baseUrl + "?c=" + collectionId;
         HttpGet get = new HttpGet(url);
         try {
-            System.out.print("Requesting archive information from " + url + "...");
+            LOGGER.info("Requesting archive information from " + url + "...");
             final HttpResponse response = HttpHelper.createClient(username, password, new URL(baseUrl).getHost()).execute(get);
             if (response.getStatusLine().getStatusCode() == 401) {
                 LOGGER.warn("Received a 401 Unauthorized response from " + url + ", you may configure authentication credentials in auth.properties!");
@@ -86,64 +127,291 @@ public class ArchiveItClient {
             if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() >= 300) {
                 throw new RuntimeException(response.getStatusLine() + " result from request to get " + url);
             }
-            System.out.println(response.getStatusLine().getStatusCode());
-            DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
-            DocumentBuilder b = f.newDocumentBuilder();
-            // the XML is not well-formed so we have to crop away some of the garbage to be able to parse it using XML libraries
-            ByteArrayOutputStream content = new ByteArrayOutputStream();
-            IOUtils.copy(response.getEntity().getContent(), content);
-            String raw = content.toString("UTF-8");
-            String cropped = raw.substring(raw.indexOf("<table>"), raw.lastIndexOf("</table>") + 8);
-            System.out.println("<<<<<<<<>>>>>>>>");
-            System.out.println(cropped);
-            System.out.println("<<<<<<<<>>>>>>>>");
-            /*
-             * Here's what' we've been getting from the API:
-             * <table>
-             * <tr>
-             * <th>Archive File</th>
-             * <th>Size (bytes)</th>
-             * <th>MD5</th>
-             * </tr>
-             * <tr><td colspan='3' style='background-color:#ddd;font-weight:bold;'><a name='2015-04'>April 2015</a></td></tr>
-             * <tr>
-             * <td><a href="/cgi-bin/getarcs.pl/ARCHIVEIT-5422-NONE-3329-20150421185626695-00000-wbgrp-crawl056.us.archive.org-6444.warc.gz">ARCHIVEIT-5422-NONE-3329-20150421185626695-00000-wbgrp-crawl056.us.archive.org-6444.warc.gz</a></td>
-             * <td>445737702</td>
-             * <td>55360004a3abbf810239f67fa54047cf</td>
-             * </tr>
-             * <tr><td colspan='3' style='background-color:#ddd;font-weight:bold;'><a name='2015-03'>March 2015</a></td></tr>
-             * <tr>
-             * <td><a href="/cgi-bin/getarcs.pl/ARCHIVEIT-5422-NONE-24556-20150310140840782-00000-wbgrp-crawl104.us.archive.org-6443.warc.gz">ARCHIVEIT-5422-NONE-24556-20150310140840782-00000-wbgrp-crawl104.us.archive.org-6443.warc.gz</a></td>
-             * <td>134997993</td>
-             * <td>c6af0b8f2fd38a9fbce25514c0e3e400</td>
-             * </tr>
-             * </table>
-             */
-            doc = b.parse(new ByteArrayInputStream(cropped.getBytes("UTF-8")));
-            System.out.println("Parsed response document.");
+            final InputStream content = response.getEntity().getContent();
+            try {
+                parseCrawls(new InputStreamReader(content, "UTF-8"), handler);
+            } finally {
+                content.close();
+            }
         } finally {
             get.releaseConnection();
         }
-        
-        String crawlTitle = null;
-        List<Warc> warcs = new ArrayList<Warc>();
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        final NodeList nl = (NodeList) xpath.evaluate("table/tr", doc, XPathConstants.NODESET);
-        for (int i = 0; i < nl.getLength(); i ++) {
-            Element row = (Element) nl.item(i);
-            NodeList tds = getTDsForRow(row);
-            if (tds.getLength() == 1) {
-                validateAndCompileCrawl(crawlTitle, warcs, results);
-                crawlTitle = (String) xpath.evaluate("a/text()", tds.item(0), XPathConstants.STRING);
-            } else if (tds.getLength() == 3) {
-                warcs.add(parseWarcFromTDs(tds));
-            }
-        }
-        validateAndCompileCrawl(crawlTitle, warcs, results);
-        return results;
     }
-    
-    private void validateAndCompileCrawl(final String title, final List<Warc> warcs, List<Crawl> crawls) {
+
+    /**
+     * Sets a directory in which the listing of each collection is kept, so that
+     * getListing() can revalidate it rather than download it again.
+     */
+    public void setListingCacheDirectory(final File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        cacheDirectory.mkdirs();
+    }
+
+    /**
+     * Gets the listing of the given collection.  If a cache directory is set and a
+     * listing of the collection was previously marked as reconciled, the request is made
+     * conditional on its ETag or Last-Modified date, and if the server doesn't use those
+     * (or ignores them) the content is compared by its SHA-256 digest instead.  Either
+     * way, Listing.isUnchanged() reports whether the listing differs from the one last
+     * reconciled.  The returned listing must be closed.
+     */
+    public Listing getListing(final String collectionId) throws IOException, InterruptedException {
+        final File cached = cacheDirectory == null ? null : new File(cacheDirectory, collectionId + ".listing");
+        final File cachedProperties = cacheDirectory == null ? null : new File(cacheDirectory, collectionId + ".listing.properties");
+        final Properties validators = new Properties();
+        if (cached != null && cached.exists() && cachedProperties.exists()) {
+            final FileInputStream fis = new FileInputStream(cachedProperties);
+            try {
+                validators.load(fis);
+            } finally {
+                fis.close();
+            }
+        }
+
+        final String url = baseUrl + "?c=" + collectionId;
+        HttpGet get = new HttpGet(url);
+        if (validators.getProperty(ETAG) != null) {
+            get.setHeader("If-None-Match", validators.getProperty(ETAG));
+        }
+        if (validators.getProperty(LAST_MODIFIED) != null) {
+            get.setHeader("If-Modified-Since", validators.getProperty(LAST_MODIFIED));
+        }
+        try {
+            LOGGER.info("Requesting archive information from " + url + "...");
+            final HttpResponse response = HttpHelper.createClient(username, password, new URL(baseUrl).getHost()).execute(get);
+            if (response.getStatusLine().getStatusCode() == 304 && !validators.isEmpty()) {
+                LOGGER.info("Listing for collection " + collectionId + " is unchanged (not modified).");
+                return new Listing(cached, null, null, validators, true);
+            }
+            if (response.getStatusLine().getStatusCode() == 401) {
+                LOGGER.warn("Received a 401 Unauthorized response from " + url + ", you may configure authentication credentials in auth.properties!");
+            }
+            if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() >= 300) {
+                throw new RuntimeException(response.getStatusLine() + " result from request to get " + url);
+            }
+
+            // download the listing (computing its digest)
+            ScratchSpace.Lease lease = null;
+            final File download;
+            if (cacheDirectory == null) {
+                lease = ScratchSpace.getDefault().lease("listing-" + collectionId, ".html", 0);
+                download = lease.getFile();
+            } else {
+                download = new File(cacheDirectory, collectionId + ".listing.tmp");
+            }
+            final MessageDigest sha256 = getSHA256();
+            final InputStream content = new DigestInputStream(response.getEntity().getContent(), sha256);
+            try {
+                final FileOutputStream fos = new FileOutputStream(download);
+                try {
+                    IOUtils.copy(content, fos);
+                } finally {
+                    fos.close();
+                }
+            } finally {
+                content.close();
+            }
+
+            final Properties newValidators = new Properties();
+            newValidators.setProperty(SHA256, toHex(sha256.digest()));
+            if (response.getFirstHeader("ETag") != null) {
+                newValidators.setProperty(ETAG, response.getFirstHeader("ETag").getValue());
+            }
+            if (response.getFirstHeader("Last-Modified") != null) {
+                newValidators.setProperty(LAST_MODIFIED, response.getFirstHeader("Last-Modified").getValue());
+            }
+            final boolean unchanged = newValidators.getProperty(SHA256).equals(validators.getProperty(SHA256));
+            if (unchanged) {
+                LOGGER.info("Listing for collection " + collectionId + " is unchanged (same content).");
+            }
+            return new Listing(download, cached, lease, newValidators, unchanged);
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    private static MessageDigest getSHA256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The listing of a collection's crawls, as fetched by getListing().
+     */
+    public class Listing {
+
+        private File file;
+
+        private File cached;
+
+        private ScratchSpace.Lease lease;
+
+        private Properties validators;
+
+        private boolean unchanged;
+
+        private Listing(File file, File cached, ScratchSpace.Lease lease, Properties validators, boolean unchanged) {
+            this.file = file;
+            this.cached = cached;
+            this.lease = lease;
+            this.validators = validators;
+            this.unchanged = unchanged;
+        }
+
+        /**
+         * Returns true if this listing is the same as the one last marked as reconciled.
+         */
+        public boolean isUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * Passes each crawl in this listing to the given handler as it is parsed.
+         */
+        public void processCrawls(final CrawlHandler handler) throws Exception {
+            final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+                parseCrawls(reader, handler);
+            } finally {
+                reader.close();
+            }
+        }
+
+        public List<Crawl> getCrawls() throws IOException, XMLStreamException {
+            final List<Crawl> results = new ArrayList<Crawl>();
+            try {
+                processCrawls(new CrawlHandler() {
+                    @Override
+                    public void handleCrawl(Crawl crawl) {
+                        results.add(crawl);
+                    }
+                });
+            } catch (IOException | XMLStreamException | RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                // not thrown by our handler
+                throw new RuntimeException(ex);
+            }
+            return results;
+        }
+
+        /**
+         * Records (if there's a cache directory) that the repository now reflects this
+         * listing, so that subsequent requests may be made conditional on it.  This
+         * should only be called once the listing has been completely reconciled.
+         */
+        public void markReconciled() throws IOException {
+            if (cached == null) {
+                return;
+            }
+            Files.move(file.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            file = cached;
+            cached = null;
+            final File properties = new File(cacheDirectory, file.getName() + ".properties");
+            final FileOutputStream fos = new FileOutputStream(properties);
+            try {
+                validators.store(fos, "Validators for the last reconciled listing");
+            } finally {
+                fos.close();
+            }
+        }
+
+        public void close() {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * Parses the crawl listing from a getarcs response.
+     *
+     * Here's what' we've been getting from the API:
+     * <pre>
+     * &lt;table&gt;
+     * &lt;tr&gt;
+     * &lt;th&gt;Archive File&lt;/th&gt;
+     * &lt;th&gt;Size (bytes)&lt;/th&gt;
+     * &lt;th&gt;MD5&lt;/th&gt;
+     * &lt;/tr&gt;
+     * &lt;tr&gt;&lt;td colspan='3' style='background-color:#ddd;font-weight:bold;'&gt;&lt;a name='2015-04'&gt;April 2015&lt;/a&gt;&lt;/td&gt;&lt;/tr&gt;
+     * &lt;tr&gt;
+     * &lt;td&gt;&lt;a href="/cgi-bin/getarcs.pl/ARCHIVEIT-5422-NONE-3329-20150421185626695-00000-wbgrp-crawl056.us.archive.org-6444.warc.gz"&gt;ARCHIVEIT-5422-NONE-3329-20150421185626695-00000-wbgrp-crawl056.us.archive.org-6444.warc.gz&lt;/a&gt;&lt;/td&gt;
+     * &lt;td&gt;445737702&lt;/td&gt;
+     * &lt;td&gt;55360004a3abbf810239f67fa54047cf&lt;/td&gt;
+     * &lt;/tr&gt;
+     * &lt;/table&gt;
+     * </pre>
+     * The page as a whole is not well-formed, so only the table is handed to the
+     * (streaming) XML parser.
+     */
+    void parseCrawls(final Reader page, final CrawlHandler handler) throws Exception {
+        final XMLStreamReader r;
+        synchronized (XML_INPUT_FACTORY) {
+            // factories aren't guaranteed to be thread safe, though the readers they create are independent
+            r = XML_INPUT_FACTORY.createXMLStreamReader(new TableReader(page));
+        }
+        try {
+            final URL baseUrl = new URL(this.baseUrl);
+            String crawlTitle = null;
+            final List<Warc> warcs = new ArrayList<Warc>();
+            List<Cell> cells = null;
+            Cell cell = null;
+            boolean inLink = false;
+            while (r.hasNext()) {
+                final int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String name = r.getLocalName();
+                    if (name.equals("tr")) {
+                        cells = new ArrayList<Cell>();
+                    } else if (name.equals("td") && cells != null) {
+                        cell = new Cell();
+                    } else if (name.equals("a") && cell != null) {
+                        inLink = true;
+                        cell.href = r.getAttributeValue(null, "href");
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    if (cell != null) {
+                        (inLink ? cell.linkText : cell.text).append(r.getText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    final String name = r.getLocalName();
+                    if (name.equals("a")) {
+                        inLink = false;
+                    } else if (name.equals("td") && cell != null) {
+                        cells.add(cell);
+                        cell = null;
+                    } else if (name.equals("tr") && cells != null) {
+                        if (cells.size() == 1) {
+                            validateAndCompileCrawl(crawlTitle, warcs, handler);
+                            crawlTitle = cells.get(0).linkText.toString();
+                        } else if (cells.size() == 3) {
+                            warcs.add(new Warc(cells.get(0).linkText.toString(),
+                                    new URL(baseUrl, cells.get(0).href == null ? "" : cells.get(0).href).toString(),
+                                    cells.get(2).text.toString()));
+                        }
+                        cells = null;
+                    }
+                }
+            }
+            validateAndCompileCrawl(crawlTitle, warcs, handler);
+        } finally {
+            r.close();
+        }
+    }
+
+    private void validateAndCompileCrawl(final String title, final List<Warc> warcs, CrawlHandler handler) throws Exception {
         if (title == null && warcs.isEmpty()) {
             return;
         } else if (title != null && warcs.isEmpty()) { 
@@ -151,33 +419,90 @@ public class ArchiveItClient {
         } else if (title == null && !warcs.isEmpty()) {
             throw new RuntimeException("No title for warcs!");
         } else {
-            crawls.add(new Crawl(title, new ArrayList<Warc>(warcs)));
+            handler.handleCrawl(new Crawl(title, new ArrayList<Warc>(warcs)));
             warcs.clear();
         }
     }
-    
+
     /**
-     * Gets a list of the text values of the TD elements within the supplied "tr" element.  The 
-     * lenght of the list indicates the number of cells.  For rows with just "th" (heading) elements
-     * this method will return an empty list.
-     * @throws XPathExpressionException 
+     * The text content of a table cell: that within its link (if any) and that which
+     * is directly within the cell.
      */
-    private static NodeList getTDsForRow(Element row) throws XPathExpressionException {
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        return (NodeList) xpath.evaluate("td", row, XPathConstants.NODESET);
-        
+    private static class Cell {
+        private String href;
+        private StringBuilder linkText = new StringBuilder();
+        private StringBuilder text = new StringBuilder();
     }
-    
-    public Warc parseWarcFromTDs(NodeList tds) throws MalformedURLException, XPathExpressionException {
-        XPath xpath = XPathFactory.newInstance().newXPath();
-        if (tds.getLength() != 3) {
-            throw new RuntimeException();
-        }
-        final URL baseUrl = new URL(this.baseUrl);
-        final String file = (String) xpath.evaluate("a/text()", tds.item(0), XPathConstants.STRING);
-        final String url = new URL(baseUrl, (String) xpath.evaluate("a/@href", tds.item(0), XPathConstants.STRING)).toString();
-        final String md5 = (String) xpath.evaluate("text()", tds.item(2), XPathConstants.STRING);
-        return new Warc(file, url, md5);
+
+    /**
+     * A Reader that passes through only the first "&lt;table&gt;" element of the underlying
+     * page (everything from "&lt;table&gt;" to the next "&lt;/table&gt;", inclusive).
+     */
+    private static class TableReader extends Reader {
+
+        private static final String START = "<table>";
+
+        private static final String END = "</table>";
+
+        private Reader page;
+
+        /**
+         * The number of characters of START matched so far, or START.length() once it
+         * has been found.
+         */
+        private int startMatched = 0;
+
+        /**
+         * The number of characters of START not yet returned.
+         */
+        private int startPending = 0;
+
+        private int endMatched = 0;
+
+        public TableReader(Reader page) {
+            this.page = new BufferedReader(page);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (startMatched < START.length()) {
+                final int c = page.read();
+                if (c == -1) {
+                    return -1;
+                }
+                if (c == START.charAt(startMatched)) {
+                    startMatched ++;
+                } else {
+                    startMatched = c == START.charAt(0) ? 1 : 0;
+                }
+                startPending = startMatched;
+            }
+            int count = 0;
+            while (startPending > 0 && count < len) {
+                cbuf[off + count ++] = START.charAt(START.length() - startPending --);
+            }
+            while (count < len && endMatched < END.length()) {
+                final int c = page.read();
+                if (c == -1) {
+                    break;
+                }
+                cbuf[off + count ++] = (char) c;
+                if (c == END.charAt(endMatched)) {
+                    endMatched ++;
+                } else {
+                    endMatched = c == END.charAt(0) ? 1 : 0;
+                }
+            }
+            return count == 0 ? -1 : count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            page.close();
+        }
     }
 
     public static class Crawl {
@@ -0,0 +1,68 @@
+package edu.virginia.lib.aptrust.helper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A simple append-only record of units of work (identified by a single line of
+ * text, typically a URI) that have been completed.  Long running processes can
+ * consult this to skip work that was finished by a previous, interrupted run.
+ */
+public class CheckpointFile {
+
+    private File file;
+
+    private Set<String> completed;
+
+    private PrintWriter writer;
+
+    public CheckpointFile(final File file) throws IOException {
+        this.file = file;
+        this.completed = new HashSet<String>();
+        if (file.exists()) {
+            BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line = null;
+                while ((line = r.readLine()) != null) {
+                    if (line.length() > 0) {
+                        completed.add(line);
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+        writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized boolean isComplete(final String key) {
+        return completed.contains(key);
+    }
+
+    /**
+     * Records the given unit of work as complete.  The record is flushed to disk
+     * before this method returns.
+     */
+    public synchronized void markComplete(final String key) {
+        if (completed.add(key)) {
+            writer.println(key);
+            writer.flush();
+        }
+    }
+
+    public synchronized void close() {
+        writer.close();
+    }
+}
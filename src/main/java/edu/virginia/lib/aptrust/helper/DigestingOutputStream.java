@@ -0,0 +1,103 @@
+package edu.virginia.lib.aptrust.helper;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An OutputStream that computes the MD5 and SHA-256 digests of everything written
+ * through it, so that content can be verified (or its checksums recorded) in the
+ * same pass that writes it.
+ */
+public class DigestingOutputStream extends FilterOutputStream {
+
+    private MessageDigest md5;
+
+    private MessageDigest sha256;
+
+    private long count;
+
+    private String md5Hex;
+
+    private String sha256Hex;
+
+    public DigestingOutputStream(OutputStream out) {
+        super(out);
+        md5 = getDigest("MD5");
+        sha256 = getDigest("SHA-256");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkNotFinished();
+        out.write(b);
+        md5.update((byte) b);
+        sha256.update((byte) b);
+        count ++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkNotFinished();
+        out.write(b, off, len);
+        md5.update(b, off, len);
+        sha256.update(b, off, len);
+        count += len;
+    }
+
+    /**
+     * Gets the number of bytes written.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets the hex encoded MD5 digest of the bytes written.  Once this (or getSHA256())
+     * has been called, nothing more may be written.
+     */
+    public String getMD5() {
+        finish();
+        return md5Hex;
+    }
+
+    /**
+     * Gets the hex encoded SHA-256 digest of the bytes written.  Once this (or getMD5())
+     * has been called, nothing more may be written.
+     */
+    public String getSHA256() {
+        finish();
+        return sha256Hex;
+    }
+
+    private void finish() {
+        if (md5Hex == null) {
+            md5Hex = toHex(md5.digest());
+            sha256Hex = toHex(sha256.digest());
+        }
+    }
+
+    private void checkNotFinished() {
+        if (md5Hex != null) {
+            throw new IllegalStateException("Digests have already been computed!");
+        }
+    }
+
+    private static MessageDigest getDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package edu.virginia.lib.aptrust.helper;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.regex.Pattern;
+
+/**
+ * A FederationMapper for a fedora federation that projects a single directory
+ * (as mounted locally) at a single fedora path.  Files beneath that directory
+ * have the same relative path beneath the federated URI, with each path segment
+ * percent-encoded.
+ */
+public class DirectoryFederationMapper implements FederationMapper {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String HEX = "0123456789ABCDEF";
+
+    private String federatedBaseUri;
+
+    private File mountPath;
+
+    /**
+     * @param federatedBaseUri the fedora 4 URI at which the directory is federated
+     *                         (for example http://host:8080/fcrepo/rest/av-masters)
+     * @param mountPath the path at which that same directory is mounted locally
+     */
+    public DirectoryFederationMapper(final String federatedBaseUri, final File mountPath) {
+        this.federatedBaseUri = federatedBaseUri.endsWith("/") ? federatedBaseUri.substring(0, federatedBaseUri.length() - 1) : federatedBaseUri;
+        this.mountPath = mountPath.getAbsoluteFile();
+    }
+
+    public File getMountPath() {
+        return mountPath;
+    }
+
+    public String getFederatedURIForFile(File f) {
+        final String root = mountPath.getPath();
+        final String path = f.getAbsolutePath();
+        if (!path.startsWith(root + File.separator)) {
+            throw new IllegalArgumentException(f + " is not within " + root + "!");
+        }
+        final StringBuilder uri = new StringBuilder(federatedBaseUri);
+        for (String segment : path.substring(root.length() + 1).split(Pattern.quote(File.separator))) {
+            uri.append('/').append(encodeSegment(segment));
+        }
+        return uri.toString();
+    }
+
+    /**
+     * Percent-encodes everything but the characters allowed unencoded in a URI path
+     * segment (RFC 3986 "pchar").
+     */
+    private static String encodeSegment(String segment) {
+        final StringBuilder encoded = new StringBuilder();
+        for (byte b : segment.getBytes(UTF8)) {
+            final char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "-._~!$&'()*+,;=:@".indexOf(c) != -1) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(HEX.charAt(c >> 4)).append(HEX.charAt(c & 0xf));
+            }
+        }
+        return encoded.toString();
+    }
+
+    public File getFileForFederatedURI(String uri) {
+        if (!uri.startsWith(federatedBaseUri + "/")) {
+            throw new IllegalArgumentException(uri + " is not within " + federatedBaseUri + "!");
+        }
+        // parsed as an absolute path so that a leading segment containing ':' isn't a scheme
+        final String path = URI.create("/" + uri.substring(federatedBaseUri.length() + 1)).getPath();
+        return new File(mountPath, path.substring(1));
+    }
+}
@@ -6,6 +6,7 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,24 +16,106 @@ import java.io.Reader;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 public class FusekiReader {
 
 	final private static Logger LOGGER = LoggerFactory.getLogger(FusekiReader.class);
-	
+
+    /**
+     * A separate logger to which the full text of every query that exceeds the slow query
+     * threshold is written.  See logback.xml.
+     */
+    final private static Logger SLOW_QUERY_LOGGER = LoggerFactory.getLogger(FusekiReader.class.getName() + ".slow");
+
+    public static final long DEFAULT_SLOW_QUERY_THRESHOLD_MS = 5000;
+
     private String fusekiBaseUrl;
 
+    private long slowQueryThresholdMs;
+
+    private QueryStatistics statistics = new QueryStatistics();
+
     private HttpClient client = createClient();
 
+    /**
+     * The readers whose statistics are logged when the JVM exits, by a single shutdown
+     * hook (held weakly, so that readers may still be discarded).
+     */
+    private static final Set<FusekiReader> READERS = Collections.newSetFromMap(new WeakHashMap<FusekiReader, Boolean>());
+
+    private static boolean shutdownHookRegistered;
+
+    /**
+     * The maximum number of concurrent connections to the triplestore.  Several
+     * ingest routines issue queries from multiple threads.
+     */
+    private static final int MAX_CONNECTIONS = 32;
+
     private static HttpClient createClient() {
-        return HttpClients.createDefault();
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+        cm.setMaxTotal(MAX_CONNECTIONS);
+        cm.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+        return HttpClients.custom().setConnectionManager(cm).build();
     }
 
     public FusekiReader(final String baseUrl) {
+        this(baseUrl, DEFAULT_SLOW_QUERY_THRESHOLD_MS);
+    }
+
+    /**
+     * @param slowQueryThresholdMs queries that take longer than this number of milliseconds
+     *                             are written (in full) to the slow query log
+     */
+    public FusekiReader(final String baseUrl, final long slowQueryThresholdMs) {
         this.fusekiBaseUrl = baseUrl;
+        this.slowQueryThresholdMs = slowQueryThresholdMs;
+        synchronized (READERS) {
+            if (!shutdownHookRegistered) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        synchronized (READERS) {
+                            for (FusekiReader reader : READERS) {
+                                reader.logQueryStatistics();
+                            }
+                        }
+                    }
+                });
+                shutdownHookRegistered = true;
+            }
+            READERS.add(this);
+        }
+    }
+
+    /**
+     * Parses the optional "triplestore-slow-query-ms" value, returning the default
+     * threshold when it is absent.
+     */
+    public static long getSlowQueryThreshold(final String configuredValue) {
+        return configuredValue == null || configuredValue.trim().length() == 0
+                ? DEFAULT_SLOW_QUERY_THRESHOLD_MS : Long.parseLong(configuredValue.trim());
+    }
+
+    /**
+     * Gets the timing information for all the queries run by this reader, grouped by
+     * query shape.
+     */
+    public QueryStatistics getQueryStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Logs a summary of the number, duration and result size of the queries run by
+     * this reader.  This is invoked automatically when the JVM exits.
+     */
+    public void logQueryStatistics() {
+        final String summary = statistics.getSummary();
+        if (summary.length() > 0) {
+            LOGGER.info("SPARQL query statistics for " + getFusekiBaseUrl() + ":\n" + summary);
+        }
     }
 
     public Map<String, String> getFirstAndOnlyQueryResponse(final String query) throws IOException {
@@ -48,24 +131,47 @@ public class FusekiReader {
     }
 
     public List<Map<String, String>> getQueryResponse(final String query) throws IOException {
+        final List<Map<String, String>> results = new ArrayList<Map<String, String>>();
+        processQueryResponse(query, new ResultHandler() {
+            @Override
+            public void handleResult(Map<String, String> result) {
+                results.add(result);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Runs the given query and hands each result to the given handler as it is parsed from
+     * the response, so that large result sets need not be held in memory.
+     */
+    public void processQueryResponse(final String query, final ResultHandler handler) throws IOException {
         final String queryUrl = getFusekiBaseUrl() + "/query?query=" + URLEncoder.encode(query, "UTF-8") +
                 "&default-graph-uri=&output=csv&stylesheet=";
         HttpGet get = new HttpGet(queryUrl);
+        final long start = System.currentTimeMillis();
+        int rows = 0;
         try {
             HttpResponse r = client.execute(get);
             Reader in = new InputStreamReader(r.getEntity().getContent());
             
-            List<Map<String, String>> results = new ArrayList<Map<String, String>>();
             Iterable<CSVRecord> records = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(in);
             for (CSVRecord record : records) {
-                Map<String, String> m = new HashMap<String, String>();
-                results.add(record.toMap());
+                handler.handleResult(record.toMap());
+                rows ++;
             }
-            return results;
         } finally {
             get.releaseConnection();
+            final long duration = System.currentTimeMillis() - start;
+            statistics.record(query, duration, rows);
+            if (duration > slowQueryThresholdMs) {
+                SLOW_QUERY_LOGGER.warn(duration + " ms, " + rows + " rows:\n" + query);
+            }
         }
+    }
 
+    public static interface ResultHandler {
+        public void handleResult(Map<String, String> result) throws IOException;
     }
 
     private String getFusekiBaseUrl() {
@@ -1,14 +1,17 @@
 package edu.virginia.lib.aptrust.helper;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,7 +27,59 @@ public class HttpHelper {
 
     final private static Logger LOGGER = LoggerFactory.getLogger(HttpHelper.class);
 
+    /**
+     * The number of concurrent connections to a host allowed by the shared client.
+     */
+    private static final int SHARED_CONNECTIONS = 16;
+
+    private static CloseableHttpClient sharedClient;
+
+    /**
+     * Gets the client used by the static request methods of this class, creating it
+     * (authenticated as by createClient()) on first use.  It pools its connections
+     * and is closed when the JVM exits.
+     */
+    private static synchronized CloseableHttpClient getSharedClient() throws IOException {
+        if (sharedClient == null) {
+            sharedClient = createPooledClient(SHARED_CONNECTIONS);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    closeSharedClient();
+                }
+            }));
+        }
+        return sharedClient;
+    }
+
+    /**
+     * Closes the shared client, if one was created.  A later request creates a new one.
+     */
+    public static synchronized void closeSharedClient() {
+        if (sharedClient != null) {
+            try {
+                sharedClient.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Unable to close the shared http client!", ex);
+            }
+            sharedClient = null;
+        }
+    }
+
     public static HttpClient createClient() throws IOException {
+        return createClientBuilder().build();
+    }
+
+    /**
+     * Creates a client that allows up to the given number of concurrent connections to a
+     * host (rather than the default two), authenticated as by createClient().  The caller
+     * must close it once it's no longer needed.
+     */
+    public static CloseableHttpClient createPooledClient(int connections) throws IOException {
+        return createClientBuilder().setMaxConnPerRoute(connections).setMaxConnTotal(connections).build();
+    }
+
+    private static HttpClientBuilder createClientBuilder() throws IOException {
         File authenticationConfig = new File("auth.properties");
         if (authenticationConfig.exists()) {
             Properties p = new Properties();
@@ -38,12 +93,10 @@ public class HttpHelper {
             credsProvider.setCredentials(
                     new AuthScope(p.getProperty("host"), AuthScope.ANY_PORT),
                     new UsernamePasswordCredentials(p.getProperty("username"), p.getProperty("password")));
-            CloseableHttpClient httpclient = HttpClients.custom()
-                    .setDefaultCredentialsProvider(credsProvider)
-                    .build();
-            return httpclient;
+            return HttpClients.custom()
+                    .setDefaultCredentialsProvider(credsProvider);
         } else {
-            return HttpClients.createDefault();
+            return HttpClients.custom();
         }
     }
     
@@ -62,7 +115,7 @@ public class HttpHelper {
     public static void getContentAtURL(final String url, OutputStream os) throws IOException {
         HttpGet get = new HttpGet(url);
         try {
-            final HttpResponse response = createClient().execute(get);
+            final HttpResponse response = getSharedClient().execute(get);
             if (response.getStatusLine().getStatusCode() == 401) {
                 LOGGER.warn("Received a 403 Forbidden response from " + url + ", you may configure authentication credentials in auth.properties!");
             }
@@ -75,4 +128,67 @@ public class HttpHelper {
         }
     }
 
+    /**
+     * Gets the length in bytes of the content at the given URL with a HEAD request, or
+     * -1 if the server doesn't report it.
+     */
+    public static long getContentLength(final String url) throws IOException {
+        return head(url).getContentLength();
+    }
+
+    /**
+     * Makes a HEAD request for the given URL.
+     */
+    public static HeadResult head(final String url) throws IOException {
+        HttpHead head = new HttpHead(url);
+        try {
+            final HttpResponse response = getSharedClient().execute(head);
+            if (response.getStatusLine().getStatusCode() < 200 || response.getStatusLine().getStatusCode() >= 300) {
+                return new HeadResult(-1, false);
+            }
+            final Header length = response.getFirstHeader("Content-Length");
+            final Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+            long contentLength = -1;
+            if (length != null) {
+                try {
+                    contentLength = Long.parseLong(length.getValue().trim());
+                } catch (NumberFormatException ex) {
+                    // unknown
+                }
+            }
+            return new HeadResult(contentLength, acceptRanges != null && acceptRanges.getValue().trim().equalsIgnoreCase("bytes"));
+        } finally {
+            head.releaseConnection();
+        }
+    }
+
+    /**
+     * What a HEAD request reported about some content.
+     */
+    public static class HeadResult {
+
+        private long contentLength;
+
+        private boolean acceptsByteRanges;
+
+        private HeadResult(long contentLength, boolean acceptsByteRanges) {
+            this.contentLength = contentLength;
+            this.acceptsByteRanges = acceptsByteRanges;
+        }
+
+        /**
+         * Gets the length in bytes of the content, or -1 if the server didn't report it.
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * Returns true if the server accepts byte range requests for the content.
+         */
+        public boolean acceptsByteRanges() {
+            return acceptsByteRanges;
+        }
+    }
+
 }
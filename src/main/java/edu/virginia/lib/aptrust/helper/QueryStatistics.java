@@ -0,0 +1,188 @@
+package edu.virginia.lib.aptrust.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Accumulates timing information for SPARQL queries grouped by their "shape",
+ * which is the query text with IRIs, literals and numbers replaced by
+ * placeholders.  Queries that differ only in the resource or identifier they
+ * look up therefore share a shape, which makes it possible to tell which kind
+ * of query is responsible for load on the triplestore.
+ *
+ * So that memory use doesn't grow with the number of queries over a long ingest, the
+ * percentiles are computed from a fixed size random sample (a reservoir) of each
+ * shape's durations; the counts, totals and maximums are exact.
+ */
+public class QueryStatistics {
+
+    private static final Pattern IRI = Pattern.compile("<[^<>\\s]*>");
+    private static final Pattern LONG_LITERAL = Pattern.compile("'''.*?'''|\"\"\".*?\"\"\"", Pattern.DOTALL);
+    private static final Pattern LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\"");
+    private static final Pattern NUMBER = Pattern.compile("\\b\\d+\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final int RESERVOIR_SIZE = 1024;
+
+    private final Map<String, ShapeStatistics> shapes = new LinkedHashMap<String, ShapeStatistics>();
+
+    /**
+     * Reduces a query to its shape.  PREFIX declarations are kept (as "<?>") so
+     * that the result remains recognizable when printed.
+     */
+    public static String getShape(final String query) {
+        String shape = LONG_LITERAL.matcher(query).replaceAll("'?'");
+        shape = LITERAL.matcher(shape).replaceAll("'?'");
+        shape = IRI.matcher(shape).replaceAll("<?>");
+        shape = NUMBER.matcher(shape).replaceAll("?");
+        return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    }
+
+    /**
+     * Records a single execution of the given query.
+     */
+    public synchronized void record(final String query, final long durationMs, final int rows) {
+        final String shape = getShape(query);
+        ShapeStatistics s = shapes.get(shape);
+        if (s == null) {
+            s = new ShapeStatistics(shape);
+            shapes.put(shape, s);
+        }
+        s.record(durationMs, rows);
+    }
+
+    /**
+     * Gets a snapshot of the statistics gathered so far, ordered by descending
+     * total time.
+     */
+    public synchronized List<ShapeStatistics> getShapeStatistics() {
+        final List<ShapeStatistics> result = new ArrayList<ShapeStatistics>();
+        for (ShapeStatistics s : shapes.values()) {
+            result.add(s.copy());
+        }
+        Collections.sort(result, Collections.reverseOrder());
+        return result;
+    }
+
+    /**
+     * Produces a human readable report with one block per query shape.
+     */
+    public String getSummary() {
+        final StringBuilder sb = new StringBuilder();
+        for (ShapeStatistics s : getShapeStatistics()) {
+            sb.append(s.getCount() + " queries, " + s.getTotalMs() + " ms total, p50=" + s.getPercentileMs(50)
+                    + " ms, p95=" + s.getPercentileMs(95) + " ms, p99=" + s.getPercentileMs(99)
+                    + " ms, max=" + s.getMaxMs() + " ms, " + s.getTotalRows() + " rows total, "
+                    + s.getMaxRows() + " rows max\n");
+            sb.append("  " + s.getShape() + "\n");
+        }
+        return sb.toString();
+    }
+
+    public static class ShapeStatistics implements Comparable<ShapeStatistics> {
+
+        private String shape;
+
+        /**
+         * A uniform random sample of the recorded durations (the first sampled entries).
+         */
+        private long[] sample;
+
+        private int sampled;
+
+        private int count;
+
+        private Random random = new Random();
+
+        private long totalMs;
+
+        private long maxMs;
+
+        private long totalRows;
+
+        private int maxRows;
+
+        private ShapeStatistics(final String shape) {
+            this.shape = shape;
+            this.sample = new long[RESERVOIR_SIZE];
+        }
+
+        private void record(final long durationMs, final int rows) {
+            count ++;
+            if (sampled < sample.length) {
+                sample[sampled ++] = durationMs;
+            } else {
+                // each of the durations so far remains in the sample with equal probability
+                final int i = random.nextInt(count);
+                if (i < sample.length) {
+                    sample[i] = durationMs;
+                }
+            }
+            totalMs += durationMs;
+            maxMs = Math.max(maxMs, durationMs);
+            totalRows += rows;
+            maxRows = Math.max(maxRows, rows);
+        }
+
+        private ShapeStatistics copy() {
+            final ShapeStatistics c = new ShapeStatistics(shape);
+            c.sample = Arrays.copyOf(sample, sampled);
+            Arrays.sort(c.sample);
+            c.sampled = sampled;
+            c.count = count;
+            c.totalMs = totalMs;
+            c.maxMs = maxMs;
+            c.totalRows = totalRows;
+            c.maxRows = maxRows;
+            return c;
+        }
+
+        public String getShape() {
+            return shape;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalMs() {
+            return totalMs;
+        }
+
+        public long getTotalRows() {
+            return totalRows;
+        }
+
+        public int getMaxRows() {
+            return maxRows;
+        }
+
+        public long getMaxMs() {
+            return maxMs;
+        }
+
+        /**
+         * Gets the nearest-rank percentile of the sampled durations.  This is only
+         * meaningful on a snapshot returned by getShapeStatistics(), whose sample is
+         * sorted.
+         */
+        public long getPercentileMs(final int percentile) {
+            if (sampled == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100.0 * sampled);
+            return sample[Math.max(0, Math.min(sampled, rank) - 1)];
+        }
+
+        @Override
+        public int compareTo(ShapeStatistics o) {
+            return Long.valueOf(totalMs).compareTo(o.totalMs);
+        }
+    }
+}
@@ -2,18 +2,36 @@ package edu.virginia.lib.aptrust.helper;
 
 import com.yourmediashelf.fedora.client.FedoraClient;
 
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Created by md5wz on 9/17/15.
+ *
+ * The static methods issue one resource index query per call.  An instance of
+ * this class may additionally be asked to prefetch every relationship for a
+ * given predicate in a single query ("bulk mode"), after which lookups for that
+ * predicate are served from memory.
  */
 public class ResourceIndexHelper {
 
+    final private static Logger LOGGER = LoggerFactory.getLogger(ResourceIndexHelper.class);
+
+    private static final String FEDORA_URI_PREFIX = "info:fedora/";
+
     /**
      * Gets the subjects of the given predicate for which the object is give given object.
      * For example, a relationship like "[subject] follows [object]" this method would always
@@ -43,4 +61,70 @@ public class ResourceIndexHelper {
         }
         return pids;
     }
+
+    /**
+     * Gets every (subject, object) pair related by the given predicate with a single,
+     * streamed resource index query and returns them as a map from each object pid to
+     * the pids of its subjects.
+     */
+    public static Map<String, List<String>> getAllSubjectsByObject(FedoraClient fc, String predicate) throws Exception {
+        if (predicate == null) {
+            throw new NullPointerException("predicate must not be null!");
+        }
+        String itqlQuery = "select $subject $object from <#ri> where $subject <" + predicate + "> $object";
+        Reader reader = new BufferedReader(new InputStreamReader(FedoraClient.riSearch(itqlQuery).lang("itql").format("CSV").execute(fc).getEntityInputStream(), "UTF-8"));
+        try {
+            Map<String, List<String>> objectToSubjects = new HashMap<String, List<String>>();
+            for (CSVRecord record : CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader)) {
+                final String subject = stripFedoraPrefix(record.get("subject"));
+                final String object = stripFedoraPrefix(record.get("object"));
+                List<String> subjects = objectToSubjects.get(object);
+                if (subjects == null) {
+                    subjects = new ArrayList<String>();
+                    objectToSubjects.put(object, subjects);
+                }
+                subjects.add(subject);
+            }
+            return objectToSubjects;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String stripFedoraPrefix(String uri) {
+        return uri.startsWith(FEDORA_URI_PREFIX) ? uri.substring(FEDORA_URI_PREFIX.length()) : uri;
+    }
+
+    private FedoraClient fc;
+
+    private Map<String, Map<String, List<String>>> prefetched = new HashMap<String, Map<String, List<String>>>();
+
+    public ResourceIndexHelper(FedoraClient fc) {
+        this.fc = fc;
+    }
+
+    /**
+     * Fetches all relationships for the given predicate so that subsequent calls to
+     * getSubjects() for that predicate don't query the resource index.
+     */
+    public void prefetch(String predicate) throws Exception {
+        final long start = System.currentTimeMillis();
+        final Map<String, List<String>> objectToSubjects = getAllSubjectsByObject(fc, predicate);
+        prefetched.put(predicate, objectToSubjects);
+        LOGGER.info("Prefetched " + predicate + " relationships for " + objectToSubjects.size() + " objects in "
+                + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Equivalent to the static getSubjects(), but answered from memory if the predicate
+     * has been prefetched.
+     */
+    public List<String> getSubjects(String predicate, String objectPid) throws Exception {
+        final Map<String, List<String>> objectToSubjects = prefetched.get(predicate);
+        if (objectToSubjects == null) {
+            return getSubjects(fc, predicate, objectPid);
+        }
+        final List<String> subjects = objectToSubjects.get(objectPid);
+        return subjects == null ? Collections.<String>emptyList() : subjects;
+    }
 }
@@ -0,0 +1,309 @@
+package edu.virginia.lib.aptrust.helper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+/**
+ * An OutputStream that uploads everything written to it as an S3 object using a
+ * multipart upload, so that content of any size can be sent without first being
+ * written to disk.  The content is cut into parts held in memory, which are uploaded
+ * in parallel; no more than a fixed number of parts are buffered at once, so writes
+ * block when uploading falls behind.  The MD5 checksum of the whole object is computed
+ * as it is written.
+ *
+ * The upload is completed by close().  If anything fails, the upload is aborted and
+ * the failure is thrown from the next write or close.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+    /**
+     * The smallest part S3 accepts (other than the last).
+     */
+    public static final int MIN_PART_BYTES = 5 * 1024 * 1024;
+
+    /**
+     * The most parts S3 accepts in one upload.
+     */
+    public static final int MAX_PARTS = 10000;
+
+    /**
+     * Gets the part size to use for an object of the given size: the given preferred
+     * size, or if that would need more than MAX_PARTS parts, the smallest size that
+     * doesn't.
+     */
+    public static int getPartBytes(long objectBytes, int preferredPartBytes) {
+        final long needed = (objectBytes + MAX_PARTS - 1) / MAX_PARTS;
+        if (needed > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("An object of " + objectBytes + " bytes is too large to upload!");
+        }
+        return (int) Math.max(preferredPartBytes, needed);
+    }
+
+    private AmazonS3Client s3;
+
+    private String bucket;
+
+    private String key;
+
+    private String uploadId;
+
+    private int partBytes;
+
+    private Semaphore buffers;
+
+    private ExecutorService uploaders;
+
+    private List<Future<PartETag>> parts = new ArrayList<Future<PartETag>>();
+
+    private byte[] buffer;
+
+    private int count;
+
+    private long total;
+
+    private MessageDigest md5;
+
+    private String checksum;
+
+    private String etag;
+
+    private boolean closed;
+
+    private boolean aborted;
+
+    /**
+     * Starts a multipart upload to the given bucket and key.
+     * @param partBytes the size of each part (at least MIN_PART_BYTES); since an object
+     *                  may have at most MAX_PARTS parts, writing more than MAX_PARTS
+     *                  times this many bytes fails (see getPartBytes())
+     * @param partBuffers the number of parts that may be held in memory (and uploaded
+     *                    concurrently) at once
+     */
+    public S3MultipartOutputStream(AmazonS3Client s3, String bucket, String key, int partBytes, int partBuffers, ObjectMetadata metadata) {
+        if (partBytes < MIN_PART_BYTES) {
+            throw new IllegalArgumentException("Parts must be at least " + MIN_PART_BYTES + " bytes!");
+        }
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.partBytes = partBytes;
+        this.buffers = new Semaphore(partBuffers);
+        this.uploaders = Executors.newFixedThreadPool(partBuffers, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                // daemon threads so that an abandoned upload doesn't keep the JVM alive
+                Thread t = new Thread(r, "s3-part-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata)).getUploadId();
+        LOGGER.debug("Started multipart upload " + uploadId + " of " + key + ".");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed!");
+        }
+        while (len > 0) {
+            if (buffer == null) {
+                checkForFailure();
+                if (parts.size() >= MAX_PARTS) {
+                    abort();
+                    throw new IOException("Unable to upload " + key + " in " + MAX_PARTS + " parts of " + partBytes + " bytes!");
+                }
+                try {
+                    buffers.acquire();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    abort();
+                    throw new IOException("Interrupted while uploading " + key + "!", ex);
+                }
+                buffer = new byte[partBytes];
+                count = 0;
+            }
+            final int n = Math.min(len, partBytes - count);
+            System.arraycopy(b, off, buffer, count, n);
+            md5.update(b, off, n);
+            count += n;
+            total += n;
+            off += n;
+            len -= n;
+            if (count == partBytes) {
+                uploadPart();
+            }
+        }
+    }
+
+    private void uploadPart() {
+        final byte[] part = buffer;
+        final int length = count;
+        final int partNumber = parts.size() + 1;
+        buffer = null;
+        parts.add(uploaders.submit(new Callable<PartETag>() {
+            @Override
+            public PartETag call() throws Exception {
+                try {
+                    final MessageDigest partMd5 = MessageDigest.getInstance("MD5");
+                    partMd5.update(part, 0, length);
+                    return s3.uploadPart(new UploadPartRequest().withBucketName(bucket).withKey(key)
+                            .withUploadId(uploadId).withPartNumber(partNumber)
+                            .withInputStream(new ByteArrayInputStream(part, 0, length)).withPartSize(length)
+                            .withMD5Digest(Base64.encodeBase64String(partMd5.digest()))).getPartETag();
+                } finally {
+                    buffers.release();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Throws the failure of any part whose upload has already failed.
+     */
+    private void checkForFailure() throws IOException {
+        for (Future<PartETag> part : parts) {
+            if (part.isDone()) {
+                getPart(part);
+            }
+        }
+    }
+
+    private PartETag getPart(Future<PartETag> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IOException("Interrupted while uploading " + key + "!", ex);
+        } catch (ExecutionException ex) {
+            abort();
+            throw new IOException("Unable to upload " + key + "!", ex.getCause());
+        }
+    }
+
+    /**
+     * Uploads the last part and completes the upload.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        if (buffer == null && parts.isEmpty()) {
+            // an empty object still needs one (empty) part
+            buffers.acquireUninterruptibly();
+            buffer = new byte[0];
+        }
+        if (buffer != null) {
+            uploadPart();
+        }
+        closed = true;
+        checksum = Base64.encodeBase64String(md5.digest());
+        final List<PartETag> etags = new ArrayList<PartETag>();
+        for (Future<PartETag> part : parts) {
+            etags.add(getPart(part));
+        }
+        uploaders.shutdown();
+        Collections.sort(etags, new Comparator<PartETag>() {
+            @Override
+            public int compare(PartETag p1, PartETag p2) {
+                return Integer.compare(p1.getPartNumber(), p2.getPartNumber());
+            }
+        });
+        try {
+            etag = s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags)).getETag();
+        } catch (RuntimeException ex) {
+            abort();
+            throw ex;
+        }
+        LOGGER.debug("Completed multipart upload of " + key + " (" + total + " bytes in " + etags.size() + " parts).");
+    }
+
+    /**
+     * Abandons the upload (unless it has already been completed), discarding any
+     * parts already sent.
+     */
+    public void abort() {
+        if (aborted || etag != null) {
+            return;
+        }
+        aborted = true;
+        closed = true;
+        for (Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+        uploaders.shutdownNow();
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Unable to abort multipart upload " + uploadId + " of " + key + "!", ex);
+        }
+    }
+
+    /**
+     * Gets the number of bytes written.
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * Gets the base64 encoded MD5 checksum of everything written.  This may only be
+     * called once the stream has been closed.
+     */
+    public String getBase64Checksum() {
+        if (etag == null) {
+            throw new IllegalStateException("The upload hasn't been completed!");
+        }
+        return checksum;
+    }
+
+    /**
+     * Gets the ETag S3 assigned to the completed object.
+     */
+    public String getETag() {
+        return etag;
+    }
+}
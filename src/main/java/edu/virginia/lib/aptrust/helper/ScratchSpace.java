@@ -0,0 +1,362 @@
+package edu.virginia.lib.aptrust.helper;
+
+import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getOptionalProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out temporary files and directories ("leases") within a scratch directory,
+ * keeping the total size of those that are outstanding within a budget.  A lease is
+ * granted against the number of bytes its caller expects to write; when the budget
+ * is exhausted, requests block until enough space is released, or fail if none is
+ * released within a time limit (so that threads each holding some space while waiting
+ * for more can't wait on each other forever).  A request larger than the whole budget
+ * fails at once.  Releasing a lease deletes its file.
+ *
+ * Each process works in its own subdirectory of the scratch directory, which it holds
+ * a lock on for as long as it runs.  The subdirectories of processes that have died
+ * (whose locks are free) are deleted when the scratch space is created.
+ */
+public class ScratchSpace {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(ScratchSpace.class);
+
+    private static final String LOCK_FILENAME = ".lock";
+
+    /**
+     * How long to wait for space before logging that we're still waiting.
+     */
+    private static final long WAIT_LOG_INTERVAL_MS = 60000;
+
+    private static final long DEFAULT_WAIT_TIMEOUT_MINUTES = 60;
+
+    private static ScratchSpace defaultScratchSpace;
+
+    /**
+     * Every scratch space that hasn't yet been closed, each of which is cleaned up by a
+     * single shutdown hook.
+     */
+    private static final Set<ScratchSpace> OPEN = new LinkedHashSet<ScratchSpace>();
+
+    private static boolean shutdownHookRegistered;
+
+    /**
+     * Configures the scratch space returned by getDefault() from the optional
+     * "scratch-dir", "scratch-budget-mb" and "scratch-wait-minutes" properties.  This
+     * must be called before the default scratch space is first used.
+     * @param defaultRoot the scratch directory to use if none is configured, or null
+     *                    for the system temporary directory
+     */
+    public static synchronized void configureDefault(Properties p, File defaultRoot) throws IOException {
+        if (defaultScratchSpace != null) {
+            throw new IllegalStateException("The default scratch space is already in use!");
+        }
+        final String dir = getOptionalProperty(p, "scratch-dir");
+        final String budget = getOptionalProperty(p, "scratch-budget-mb");
+        final String wait = getOptionalProperty(p, "scratch-wait-minutes");
+        final File root = dir != null && dir.trim().length() > 0 ? new File(dir.trim()) : defaultRoot;
+        defaultScratchSpace = new ScratchSpace(root != null ? root : getSystemScratchDir(),
+                budget != null && budget.trim().length() > 0 ? Long.parseLong(budget.trim()) * 1024 * 1024 : -1);
+        if (wait != null && wait.trim().length() > 0) {
+            defaultScratchSpace.setWaitTimeout(Long.parseLong(wait.trim()), TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Gets the scratch space to be used for all temporary files.  Unless configured
+     * otherwise, it is in the system temporary directory and its budget is 80% of the
+     * space available there.
+     */
+    public static synchronized ScratchSpace getDefault() throws IOException {
+        if (defaultScratchSpace == null) {
+            defaultScratchSpace = new ScratchSpace(getSystemScratchDir(), -1);
+        }
+        return defaultScratchSpace;
+    }
+
+    private static File getSystemScratchDir() {
+        return new File(System.getProperty("java.io.tmpdir"), "preservation-manager-scratch");
+    }
+
+    private File directory;
+
+    private FileChannel lockChannel;
+
+    private FileLock lock;
+
+    private long budgetBytes;
+
+    private long reservedBytes;
+
+    private long waitTimeoutMs = TimeUnit.MINUTES.toMillis(DEFAULT_WAIT_TIMEOUT_MINUTES);
+
+    /**
+     * @param root the scratch directory, which may be shared with other processes
+     * @param budgetBytes the total number of bytes this process may have leased at once,
+     *                    or a negative number for 80% of the space available in root
+     */
+    public ScratchSpace(File root, long budgetBytes) throws IOException {
+        if (!root.exists() && !root.mkdirs()) {
+            throw new IOException("Unable to create scratch directory " + root + "!");
+        }
+        recoverOrphans(root);
+        directory = new File(root, UUID.randomUUID().toString());
+        if (!directory.mkdir()) {
+            throw new IOException("Unable to create scratch directory " + directory + "!");
+        }
+        lockChannel = new RandomAccessFile(new File(directory, LOCK_FILENAME), "rw").getChannel();
+        lock = lockChannel.lock();
+        this.budgetBytes = budgetBytes >= 0 ? budgetBytes : root.getUsableSpace() / 10 * 8;
+        LOGGER.info("Using scratch directory " + directory + " with a budget of " + this.budgetBytes + " bytes.");
+        register(this);
+    }
+
+    private static synchronized void register(ScratchSpace scratch) {
+        OPEN.add(scratch);
+        if (!shutdownHookRegistered) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final List<ScratchSpace> open;
+                    synchronized (ScratchSpace.class) {
+                        open = new ArrayList<ScratchSpace>(OPEN);
+                        OPEN.clear();
+                    }
+                    for (ScratchSpace scratch : open) {
+                        scratch.close();
+                    }
+                }
+            }));
+            shutdownHookRegistered = true;
+        }
+    }
+
+    /**
+     * Sets how long a request may wait for space before it fails (by default an hour),
+     * or 0 to wait indefinitely.
+     */
+    public void setWaitTimeout(long timeout, TimeUnit unit) {
+        this.waitTimeoutMs = unit.toMillis(timeout);
+    }
+
+    /**
+     * Deletes the working directories of processes that are no longer running.
+     */
+    private static void recoverOrphans(File root) throws IOException {
+        final File[] dirs = root.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            final File lockFile = new File(dir, LOCK_FILENAME);
+            if (!dir.isDirectory() || !lockFile.exists()) {
+                continue;
+            }
+            final FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+            try {
+                final FileLock orphanLock;
+                try {
+                    orphanLock = channel.tryLock();
+                } catch (OverlappingFileLockException ex) {
+                    // held by another scratch space in this process
+                    continue;
+                }
+                if (orphanLock != null) {
+                    LOGGER.info("Deleting orphaned scratch directory " + dir + ".");
+                    delete(dir);
+                    orphanLock.release();
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Gets the number of bytes that may currently be leased without waiting.
+     */
+    public synchronized long getAvailableBytes() {
+        return Math.max(0, budgetBytes - reservedBytes);
+    }
+
+    /**
+     * Leases a new, empty temporary file, waiting if necessary until the given number
+     * of bytes may be written to it within the budget.
+     */
+    public Lease lease(String prefix, String suffix, long expectedBytes) throws IOException, InterruptedException {
+        reserve(expectedBytes);
+        try {
+            return new Lease(File.createTempFile(prefix, suffix, directory), expectedBytes);
+        } catch (IOException ex) {
+            free(expectedBytes);
+            throw ex;
+        }
+    }
+
+    /**
+     * Leases a new, empty temporary directory within which named files may be leased.
+     * Releasing the directory releases any such files that remain.
+     */
+    public Lease leaseDirectory(String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "", directory);
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create temporary directory " + dir + "!");
+        }
+        return new Lease(dir, 0);
+    }
+
+    /**
+     * Leases a file with the given name (which may include subdirectories) in the given
+     * leased directory, waiting if necessary until the given number of bytes may be
+     * written to it within the budget.
+     */
+    public Lease lease(Lease directory, String filename, long expectedBytes) throws IOException, InterruptedException {
+        final File file = new File(directory.getFile(), filename);
+        if (file.exists()) {
+            throw new RuntimeException("File already exists! " + file.getAbsolutePath());
+        }
+        file.getParentFile().mkdirs();
+        reserve(expectedBytes);
+        final Lease lease = new Lease(file, expectedBytes);
+        synchronized (directory) {
+            directory.children.add(lease);
+        }
+        return lease;
+    }
+
+    private synchronized void reserve(long bytes) throws IOException, InterruptedException {
+        bytes = Math.max(0, bytes);
+        if (bytes > budgetBytes) {
+            throw new IOException("Unable to reserve " + bytes + " bytes of scratch space, which exceeds the budget of "
+                    + budgetBytes + " bytes!");
+        }
+        final long start = System.currentTimeMillis();
+        long lastLogged = start;
+        while (reservedBytes + bytes > budgetBytes) {
+            final long now = System.currentTimeMillis();
+            if (waitTimeoutMs > 0 && now - start >= waitTimeoutMs) {
+                throw new IOException("Gave up after " + (now - start) + " ms waiting for " + bytes + " bytes of scratch space ("
+                        + reservedBytes + " of " + budgetBytes + " bytes in use)!");
+            }
+            if (now - lastLogged >= WAIT_LOG_INTERVAL_MS) {
+                LOGGER.info("Waiting for " + bytes + " bytes of scratch space (" + reservedBytes + " of "
+                        + budgetBytes + " bytes in use)...");
+                lastLogged = now;
+            }
+            final long remaining = waitTimeoutMs > 0 ? start + waitTimeoutMs - now : WAIT_LOG_INTERVAL_MS;
+            wait(Math.max(1, Math.min(WAIT_LOG_INTERVAL_MS, remaining)));
+        }
+        reservedBytes += bytes;
+    }
+
+    private synchronized void free(long bytes) {
+        reservedBytes -= Math.max(0, bytes);
+        notifyAll();
+    }
+
+    /**
+     * Adjusts the reservation for a lease whose actual size turned out to differ from
+     * what was expected.  This never blocks, so the budget may be briefly exceeded.
+     */
+    private synchronized void resize(long oldBytes, long newBytes) {
+        reservedBytes += Math.max(0, newBytes) - Math.max(0, oldBytes);
+        notifyAll();
+    }
+
+    private synchronized void close() {
+        synchronized (ScratchSpace.class) {
+            OPEN.remove(this);
+        }
+        try {
+            delete(directory);
+            lock.release();
+            lockChannel.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to clean up scratch directory " + directory + "!", ex);
+        }
+    }
+
+    private static void delete(File f) {
+        final File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * A temporary file or directory and the number of bytes reserved for it.
+     */
+    public class Lease {
+
+        private File file;
+
+        private long bytes;
+
+        private boolean released;
+
+        private List<Lease> children = new ArrayList<Lease>();
+
+        private Lease(File file, long bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Updates the reservation to the actual size of the file, typically once it has
+         * been written.
+         */
+        public synchronized void updateSize() {
+            if (!released && file.isFile()) {
+                resize(bytes, file.length());
+                bytes = file.length();
+            }
+        }
+
+        /**
+         * Deletes the file (or directory, and any leased files within it) and returns
+         * the space reserved for it to the budget.  Subsequent calls have no effect.
+         */
+        public synchronized void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            for (Lease child : children) {
+                child.release();
+            }
+            delete(file);
+            free(bytes);
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+package edu.virginia.lib.aptrust.helper;
+
+import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getOptionalProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads large files as several byte ranges requested in parallel, each written
+ * directly to its place in the (preallocated) output file.  Over high latency links
+ * a single TCP stream rarely fills the available bandwidth, so this is several times
+ * faster than a plain GET.  A segment that fails is retried from where it left off
+ * without disturbing the others; one that fails for good abandons the rest.  All of a
+ * file's requests share one pooled client, which is closed once the file is done.
+ */
+public class SegmentedDownloader {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(SegmentedDownloader.class);
+
+    private static final int DEFAULT_SEGMENTS = 4;
+
+    private static final long DEFAULT_MIN_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How long abandoned segments are given to stop before the output file is closed.
+     */
+    private static final long ABANDON_WAIT_MS = 30000;
+
+    private static SegmentedDownloader defaultDownloader;
+
+    /**
+     * Configures the downloader returned by getDefault() from the optional
+     * "download-segments" and "download-min-segment-mb" properties.
+     */
+    public static synchronized void configureDefault(Properties p) {
+        final String segments = getOptionalProperty(p, "download-segments");
+        final String minSegment = getOptionalProperty(p, "download-min-segment-mb");
+        defaultDownloader = new SegmentedDownloader(
+                segments == null || segments.trim().length() == 0 ? DEFAULT_SEGMENTS : Integer.parseInt(segments.trim()),
+                minSegment == null || minSegment.trim().length() == 0 ? DEFAULT_MIN_SEGMENT_BYTES : Long.parseLong(minSegment.trim()) * 1024 * 1024);
+    }
+
+    public static synchronized SegmentedDownloader getDefault() {
+        if (defaultDownloader == null) {
+            defaultDownloader = new SegmentedDownloader(DEFAULT_SEGMENTS, DEFAULT_MIN_SEGMENT_BYTES);
+        }
+        return defaultDownloader;
+    }
+
+    private int segments;
+
+    private long minSegmentBytes;
+
+    private ExecutorService workers;
+
+    /**
+     * @param segments the most byte ranges a single file is split into (1 disables
+     *                 segmented downloads)
+     * @param minSegmentBytes the smallest range worth requesting separately; files
+     *                        shorter than twice this are never split
+     */
+    public SegmentedDownloader(int segments, long minSegmentBytes) {
+        this.segments = segments;
+        this.minSegmentBytes = minSegmentBytes;
+        this.workers = Executors.newCachedThreadPool(new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                // daemon threads so that an abandoned download doesn't keep the JVM alive
+                Thread t = new Thread(r, "download-segment-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Downloads the content at the given URL to the given file in segments if it is
+     * large enough and the server supports byte range requests.
+     * @param head the result of a HEAD request for the URL, which gives the length of
+     *             the content and whether byte ranges may be requested
+     * @return true if the file was downloaded, false if the content isn't suited to a
+     *         segmented download (in which case nothing was written) and should be
+     *         fetched with a plain GET
+     */
+    public boolean download(final String url, final File file, final HttpHelper.HeadResult head) throws IOException, InterruptedException {
+        final long length = head.getContentLength();
+        final int count = (int) Math.min(segments, length / minSegmentBytes);
+        if (count < 2 || !head.acceptsByteRanges()) {
+            return false;
+        }
+        final CloseableHttpClient client = HttpHelper.createPooledClient(count);
+        try {
+            LOGGER.debug("Downloading " + url + " (" + length + " bytes) in " + count + " segments.");
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+                final FileChannel channel = raf.getChannel();
+                final AtomicBoolean abandoned = new AtomicBoolean(false);
+                final CompletionService<Void> completion = new ExecutorCompletionService<Void>(workers);
+                final List<Future<Void>> results = new ArrayList<Future<Void>>();
+                final long segmentLength = length / count;
+                for (int i = 0; i < count; i ++) {
+                    final long start = i * segmentLength;
+                    final long end = i == count - 1 ? length : start + segmentLength;
+                    results.add(completion.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            downloadSegment(client, url, channel, start, end, abandoned);
+                            return null;
+                        }
+                    }));
+                }
+                boolean complete = false;
+                try {
+                    // in order of completion, so that the first failure is seen at once
+                    for (int i = 0; i < count; i ++) {
+                        completion.take().get();
+                    }
+                    complete = true;
+                } catch (ExecutionException ex) {
+                    final Throwable cause = ex.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else {
+                        throw new RuntimeException(cause);
+                    }
+                } finally {
+                    if (!complete) {
+                        abandonSegments(client, results, abandoned);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        } finally {
+            client.close();
+        }
+        return true;
+    }
+
+    /**
+     * Stops the given segments, waiting (for a limited time) for them to stop writing so
+     * that the output file may be closed.
+     */
+    private static void abandonSegments(CloseableHttpClient client, List<Future<Void>> results, AtomicBoolean abandoned) throws IOException {
+        abandoned.set(true);
+        // closing the client aborts any segment blocked on a read
+        client.close();
+        final long deadline = System.currentTimeMillis() + ABANDON_WAIT_MS;
+        for (Future<Void> result : results) {
+            try {
+                result.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ex) {
+                // already reported, or caused by closing the client
+            } catch (TimeoutException ex) {
+                LOGGER.warn("A segment didn't stop within " + ABANDON_WAIT_MS + " ms of being abandoned.");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the bytes from start (inclusive) to end (exclusive) into their place in the
+     * given channel, resuming from the last byte written if the transfer is interrupted.
+     */
+    private static void downloadSegment(CloseableHttpClient client, String url, FileChannel channel, long start, long end, AtomicBoolean abandoned) throws IOException {
+        long position = start;
+        for (int attempt = 1; ; attempt ++) {
+            if (abandoned.get()) {
+                return;
+            }
+            final HttpGet get = new HttpGet(url);
+            get.setHeader("Range", "bytes=" + position + "-" + (end - 1));
+            try {
+                final HttpResponse response = client.execute(get);
+                if (response.getStatusLine().getStatusCode() != 206) {
+                    throw new RuntimeException(response.getStatusLine() + " result from request for bytes " + position + "-" + (end - 1) + " of " + url);
+                }
+                final InputStream in = response.getEntity().getContent();
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while (position < end && (read = in.read(buffer, 0, (int) Math.min(buffer.length, end - position))) != -1) {
+                    if (abandoned.get()) {
+                        get.abort();
+                        return;
+                    }
+                    final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+                    while (bb.hasRemaining()) {
+                        position += channel.write(bb, position);
+                    }
+                }
+                if (position < end) {
+                    throw new IOException("Connection closed after " + (position - start) + " of " + (end - start) + " bytes.");
+                }
+                return;
+            } catch (IOException ex) {
+                if (attempt >= MAX_SEGMENT_ATTEMPTS || abandoned.get()) {
+                    throw new IOException("Unable to download bytes " + start + "-" + (end - 1) + " of " + url + "!", ex);
+                }
+                LOGGER.warn("Segment " + start + "-" + (end - 1) + " of " + url + " failed at byte " + position + " (attempt " + attempt + "), resuming.", ex);
+            } finally {
+                get.releaseConnection();
+            }
+        }
+    }
+
+}
@@ -1,7 +1,9 @@
 package edu.virginia.lib.aptrust.helper;
 
+import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
 import org.apache.solr.client.solrj.impl.XMLResponseParser;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -9,52 +11,239 @@ import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
 
 import java.net.MalformedURLException;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
+/**
+ * Iterates over the records matching solr queries, a page at a time.  By default
+ * pages are requested with "start" offsets, which works with any version of solr but
+ * gets slower with every page; against solr 4.7 or later, setUseCursorMark()
+ * requests pages with cursors (sorted by the unique key) instead, which is equally
+ * fast at any depth.  Unless disabled, the next page is requested on a background
+ * thread while the current one is being consumed.
+ */
 public class SolrReader {
 
+    private static final int DEFAULT_ROWS = 100;
+
     private SolrServer solr;
 
+    private int rows = DEFAULT_ROWS;
+
+    private boolean useCursorMark;
+
+    private String uniqueKeyField = "id";
+
+    private ExecutorService prefetcher;
+
+    /**
+     * @param useXMLResponses if true, responses are requested as XML (for servers whose
+     *                        javabin format is incompatible with this client), otherwise
+     *                        in the more compact javabin format
+     */
     public SolrReader(String url, boolean useXMLResponses) throws MalformedURLException {
         solr = new HttpSolrServer(url);
         if (useXMLResponses) {
             ((HttpSolrServer) solr).setParser(new XMLResponseParser());
+        } else {
+            ((HttpSolrServer) solr).setParser(new BinaryResponseParser());
+        }
+        setPrefetch(true);
+    }
+
+    /**
+     * Sets the number of records requested per page.
+     */
+    public void setRows(int rows) {
+        this.rows = rows;
+    }
+
+    /**
+     * Sets whether pages are requested using cursors (which requires solr 4.7 or later)
+     * rather than start offsets.
+     * @param uniqueKeyField the unique key field of the index, by which results are
+     *                       sorted so that the cursor is stable
+     */
+    public void setUseCursorMark(boolean useCursorMark, String uniqueKeyField) {
+        this.useCursorMark = useCursorMark;
+        this.uniqueKeyField = uniqueKeyField;
+    }
+
+    /**
+     * Sets whether the next page of results is requested in the background while the
+     * current one is consumed.
+     */
+    public void setPrefetch(boolean prefetch) {
+        if (prefetch && prefetcher == null) {
+            prefetcher = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    // daemon threads so that an abandoned iterator doesn't keep the JVM alive
+                    Thread t = new Thread(r, "solr-prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else if (!prefetch && prefetcher != null) {
+            prefetcher.shutdown();
+            prefetcher = null;
         }
     }
 
-    public Iterator<SolrDocument> getRecordsForQuery(String query) throws SolrServerException {
-        int start = 0;
+    /**
+     * Gets an iterator over all records matching the given query.
+     * @param fields the fields to be returned for each record, or none for all stored fields
+     */
+    public Iterator<SolrDocument> getRecordsForQuery(String query, String ... fields) throws SolrServerException {
         final ModifiableSolrParams p = new ModifiableSolrParams();
         p.set("q", new String[] { query });
-        p.set("rows", 100);
-        p.set("start", start);
-        return new Iterator<SolrDocument>() {
-
-            int index = 0;
-            int start = 0;
-            QueryResponse response = null;
-
-            public boolean hasNext() {
-                if (response == null || response.getResults().size() <= index) {
-                    p.set("rows", 100);
-                    p.set("start", start);
-                    try {
-                        response = solr.query(p);
-                        start += response.getResults().size();
-                        index = 0;
-                    } catch (SolrServerException e) {
-                        throw new RuntimeException(e);
-                    }
+        p.set("rows", rows);
+        if (fields.length > 0) {
+            p.set("fl", join(fields));
+        }
+        if (useCursorMark) {
+            p.set("sort", uniqueKeyField + " asc");
+        }
+        return new PageIterator(p, prefetcher);
+    }
+
+    /**
+     * Determines which of the given values of the unique key field exist in the index
+     * with a single query, made with POST so that long lists of values don't exceed
+     * URL length limits.  Callers should keep the number of values well below solr's
+     * maxBooleanClauses (1024 by default).
+     */
+    public Set<String> getExistingIds(Collection<String> ids) throws SolrServerException {
+        final Set<String> existing = new HashSet<String>();
+        if (ids.isEmpty()) {
+            return existing;
+        }
+        final StringBuilder query = new StringBuilder();
+        for (String id : ids) {
+            query.append(query.length() == 0 ? uniqueKeyField + ":(" : " OR ");
+            query.append('"').append(id.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        query.append(')');
+        final ModifiableSolrParams p = new ModifiableSolrParams();
+        p.set("q", query.toString());
+        p.set("fl", uniqueKeyField);
+        p.set("rows", ids.size());
+        for (SolrDocument doc : solr.query(p, SolrRequest.METHOD.POST).getResults()) {
+            existing.add(String.valueOf(doc.getFirstValue(uniqueKeyField)));
+        }
+        return existing;
+    }
+
+    private class PageIterator implements Iterator<SolrDocument> {
+
+        private ModifiableSolrParams params;
+
+        private ExecutorService prefetcher;
+
+        private int index = 0;
+
+        private QueryResponse response = null;
+
+        /**
+         * The offset of the next page to be requested (when not using cursors).
+         */
+        private int start = 0;
+
+        /**
+         * The cursor for the next page to be requested (when using cursors).
+         */
+        private String cursorMark = "*";
+
+        /**
+         * The next page, requested (in the background if prefetching) but not yet
+         * consumed, or null if there are no more pages.
+         */
+        private Future<QueryResponse> nextPage;
+
+        public PageIterator(ModifiableSolrParams params, ExecutorService prefetcher) {
+            this.params = params;
+            this.prefetcher = prefetcher;
+            nextPage = requestPage();
+        }
+
+        public boolean hasNext() {
+            if (response == null || response.getResults().size() <= index) {
+                if (nextPage == null) {
+                    return false;
+                }
+                try {
+                    response = nextPage.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e.getCause());
+                }
+                index = 0;
+                nextPage = null;
+                final int size = response.getResults().size();
+                final String nextCursorMark = (String) response.getResponse().get("nextCursorMark");
+                // a short page, or a cursor that doesn't advance, means there are no more results
+                final boolean more = size == rows && (!useCursorMark || (nextCursorMark != null && !nextCursorMark.equals(cursorMark)));
+                start += size;
+                cursorMark = nextCursorMark;
+                if (more) {
+                    nextPage = requestPage();
                 }
-                return response.getResults().size() > index;
             }
+            return response.getResults().size() > index;
+        }
 
-            public SolrDocument next() {
-                if (!hasNext()) {
-                    throw new IllegalStateException();
+        public SolrDocument next() {
+            if (!hasNext()) {
+                throw new IllegalStateException();
+            }
+            return response.getResults().get(index ++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private Future<QueryResponse> requestPage() {
+            final ModifiableSolrParams p = new ModifiableSolrParams(params);
+            if (useCursorMark) {
+                p.set("cursorMark", cursorMark);
+            } else {
+                p.set("start", start);
+            }
+            final FutureTask<QueryResponse> request = new FutureTask<QueryResponse>(new Callable<QueryResponse>() {
+                @Override
+                public QueryResponse call() throws SolrServerException {
+                    return solr.query(p);
                 }
-                return response.getResults().get(index ++);
+            });
+            if (prefetcher != null) {
+                prefetcher.execute(request);
+            } else {
+                request.run();
             }
-        };
+            return request;
+        }
+    }
+
+    private static String join(String[] fields) {
+        final StringBuilder fl = new StringBuilder();
+        for (String field : fields) {
+            if (fl.length() > 0) {
+                fl.append(',');
+            }
+            fl.append(field);
+        }
+        return fl.toString();
     }
 }
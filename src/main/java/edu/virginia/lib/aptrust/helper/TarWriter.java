@@ -0,0 +1,168 @@
+package edu.virginia.lib.aptrust.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes a directory tree to an OutputStream as a POSIX (ustar) tar archive, so that
+ * an archive can be produced straight into a network stream without a tar file ever
+ * being written.  Sizes too large for the ustar octal field (8 GB and up) use the
+ * base-256 encoding understood by GNU tar and most other readers.
+ */
+public class TarWriter {
+
+    private static final int BLOCK = 512;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private OutputStream out;
+
+    private byte[] buffer = new byte[64 * 1024];
+
+    public TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Gets the number of bytes writeDirectory() followed by finish() will write for the
+     * given directory as it is now.
+     */
+    public static long getArchiveSize(File dir) throws IOException {
+        return getTreeSize(dir) + BLOCK * 2;
+    }
+
+    private static long getTreeSize(File f) throws IOException {
+        if (f.isDirectory()) {
+            final File[] children = f.listFiles();
+            if (children == null) {
+                throw new IOException("Unable to list " + f + "!");
+            }
+            long size = BLOCK;
+            for (File child : children) {
+                size += getTreeSize(child);
+            }
+            return size;
+        } else {
+            return BLOCK + (f.length() + BLOCK - 1) / BLOCK * BLOCK;
+        }
+    }
+
+    /**
+     * Writes the given directory, and everything in it, with entry names relative to
+     * its parent (so the archive contains a single top level directory).
+     */
+    public void writeDirectory(File dir) throws IOException {
+        writeTree(dir, dir.getName());
+    }
+
+    private void writeTree(File f, String name) throws IOException {
+        if (f.isDirectory()) {
+            writeHeader(name + "/", 0, f.lastModified(), true);
+            final File[] children = f.listFiles();
+            if (children == null) {
+                throw new IOException("Unable to list " + f + "!");
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                writeTree(child, name + "/" + child.getName());
+            }
+        } else {
+            final long length = f.length();
+            writeHeader(name, length, f.lastModified(), false);
+            final InputStream in = new FileInputStream(f);
+            try {
+                long remaining = length;
+                int read;
+                while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+                if (remaining > 0) {
+                    throw new IOException(f + " changed while it was being archived!");
+                }
+            } finally {
+                in.close();
+            }
+            pad(length);
+        }
+    }
+
+    /**
+     * Writes the end of archive marker.  This does not close the underlying stream.
+     */
+    public void finish() throws IOException {
+        out.write(new byte[BLOCK * 2]);
+    }
+
+    private void pad(long length) throws IOException {
+        final int remainder = (int) (length % BLOCK);
+        if (remainder != 0) {
+            out.write(new byte[BLOCK - remainder]);
+        }
+    }
+
+    private void writeHeader(String name, long size, long lastModified, boolean directory) throws IOException {
+        final byte[] header = new byte[BLOCK];
+        final byte[] nameBytes = name.getBytes(UTF8);
+        if (nameBytes.length <= 100) {
+            System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        } else {
+            // split the name between the prefix and name fields at a '/'
+            int split = -1;
+            for (int i = nameBytes.length - 1; i > 0; i --) {
+                if (nameBytes[i] == '/' && i <= 155 && nameBytes.length - i - 1 <= 100 && nameBytes.length - i - 1 > 0) {
+                    split = i;
+                    break;
+                }
+            }
+            if (split == -1) {
+                throw new IOException("Path too long to archive: " + name);
+            }
+            System.arraycopy(nameBytes, split + 1, header, 0, nameBytes.length - split - 1);
+            System.arraycopy(nameBytes, 0, header, 345, split);
+        }
+        octal(header, 100, 8, directory ? 0755 : 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        if (size < 077777777777L) {
+            octal(header, 124, 12, size);
+        } else {
+            // base-256: the high bit of the first byte flags a big-endian binary number
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i ++) {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(header, 136, 12, lastModified / 1000);
+        header[156] = (byte) (directory ? '5' : '0');
+        System.arraycopy("ustar\u000000".getBytes(UTF8), 0, header, 257, 8);
+        // the checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        header[155] = ' ';
+        out.write(header);
+    }
+
+    /**
+     * Writes the given value as a zero padded octal number filling all but the last
+     * byte of the given field, which is left as a NUL terminator.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        final String digits = Long.toOctalString(value);
+        final int width = length - 1;
+        for (int i = 0; i < width; i ++) {
+            final int d = i - (width - digits.length());
+            header[offset + i] = (byte) (d < 0 ? '0' : digits.charAt(d));
+        }
+        header[offset + width] = 0;
+    }
+}
@@ -0,0 +1,156 @@
+package edu.virginia.lib.aptrust.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.poi.hssf.eventusermodel.EventWorkbookBuilder.SheetRecordCollectingListener;
+import org.apache.poi.hssf.eventusermodel.FormatTrackingHSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.MissingRecordAwareHSSFListener;
+import org.apache.poi.hssf.eventusermodel.dummyrecord.LastCellOfRowDummyRecord;
+import org.apache.poi.hssf.eventusermodel.dummyrecord.MissingCellDummyRecord;
+import org.apache.poi.hssf.model.HSSFFormulaParser;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BlankRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.SSTRecord;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+
+/**
+ * Reads the rows of the first sheet of an .xls spreadsheet using the POI event
+ * model, so that the workbook is never held in memory.  Each row is handed to a
+ * RowHandler as soon as it has been read, as a list of the text values of its
+ * cells.  The text values follow the conventions that WSLSIngest has always
+ * used: formatted numbers, "" for blank cells, the formula (not its value) for
+ * formula cells and null for cells that are missing entirely.
+ */
+public class XlsRowReader {
+
+    public static interface RowHandler {
+        public void handleRow(int rowNumber, List<String> cells) throws Exception;
+    }
+
+    /**
+     * Returns the cell value at the given column, or null if the row has no such cell.
+     */
+    public static String getCell(List<String> cells, int column) {
+        return column < cells.size() ? cells.get(column) : null;
+    }
+
+    public static void readFirstSheet(File xls, RowHandler handler) throws Exception {
+        final FileInputStream fis = new FileInputStream(xls);
+        try {
+            final RowAssemblingListener rows = new RowAssemblingListener(handler);
+            final FormatTrackingHSSFListener formatListener = new FormatTrackingHSSFListener(new MissingRecordAwareHSSFListener(rows));
+            final SheetRecordCollectingListener workbookListener = new SheetRecordCollectingListener(formatListener);
+            rows.formatListener = formatListener;
+            rows.workbookListener = workbookListener;
+
+            final HSSFRequest request = new HSSFRequest();
+            request.addListenerForAllRecords(workbookListener);
+            try {
+                new HSSFEventFactory().processWorkbookEvents(request, new POIFSFileSystem(fis));
+            } catch (HandlerException ex) {
+                throw (Exception) ex.getCause();
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Carries an exception thrown by the RowHandler out through the POI event
+     * machinery, whose listener interface doesn't allow checked exceptions.
+     */
+    private static class HandlerException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public HandlerException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private static class RowAssemblingListener implements HSSFListener {
+
+        private RowHandler handler;
+
+        private FormatTrackingHSSFListener formatListener;
+
+        private SheetRecordCollectingListener workbookListener;
+
+        private SSTRecord sst;
+
+        private int sheetIndex = -1;
+
+        private List<String> cells = new ArrayList<String>();
+
+        public RowAssemblingListener(RowHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void processRecord(Record record) {
+            if (record instanceof BOFRecord) {
+                if (((BOFRecord) record).getType() == BOFRecord.TYPE_WORKSHEET) {
+                    sheetIndex ++;
+                }
+                return;
+            } else if (record instanceof SSTRecord) {
+                sst = (SSTRecord) record;
+                return;
+            }
+            if (sheetIndex != 0) {
+                return;
+            }
+            if (record instanceof BlankRecord) {
+                setCell(((BlankRecord) record).getColumn(), "");
+            } else if (record instanceof BoolErrRecord) {
+                final BoolErrRecord r = (BoolErrRecord) record;
+                setCell(r.getColumn(), r.isBoolean() ? String.valueOf(r.getBooleanValue()) : "ERROR: " + r.getErrorValue());
+            } else if (record instanceof FormulaRecord) {
+                final FormulaRecord r = (FormulaRecord) record;
+                setCell(r.getColumn(), HSSFFormulaParser.toFormulaString(workbookListener.getStubHSSFWorkbook(), r.getParsedExpression()));
+            } else if (record instanceof LabelRecord) {
+                final LabelRecord r = (LabelRecord) record;
+                setCell(r.getColumn(), r.getValue());
+            } else if (record instanceof LabelSSTRecord) {
+                final LabelSSTRecord r = (LabelSSTRecord) record;
+                setCell(r.getColumn(), sst.getString(r.getSSTIndex()).toString());
+            } else if (record instanceof NumberRecord) {
+                final NumberRecord r = (NumberRecord) record;
+                setCell(r.getColumn(), formatListener.formatNumberDateCell(r));
+            } else if (record instanceof MissingCellDummyRecord) {
+                setCell(((MissingCellDummyRecord) record).getColumn(), null);
+            } else if (record instanceof LastCellOfRowDummyRecord) {
+                final List<String> row = Collections.unmodifiableList(cells);
+                cells = new ArrayList<String>();
+                try {
+                    handler.handleRow(((LastCellOfRowDummyRecord) record).getRow(), row);
+                } catch (RuntimeException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new HandlerException(ex);
+                }
+            }
+        }
+
+        private void setCell(int column, String value) {
+            while (cells.size() <= column) {
+                cells.add(null);
+            }
+            cells.set(column, value);
+        }
+    }
+
+}
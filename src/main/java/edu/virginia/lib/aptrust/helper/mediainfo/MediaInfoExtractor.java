@@ -0,0 +1,139 @@
+package edu.virginia.lib.aptrust.helper.mediainfo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pipeline stage that generates MediaInfo reports on a bounded pool of worker
+ * threads, so that technical metadata extraction (which reads each media file in
+ * its entirety) can overlap with other work.  Files are submitted as they are
+ * discovered, and a handler is invoked on the worker thread as soon as each
+ * report has been written.  When more files have been submitted than the workers
+ * can keep up with, submit() blocks.
+ */
+public class MediaInfoExtractor {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(MediaInfoExtractor.class);
+
+    public static interface ReportHandler {
+
+        /**
+         * Invoked once the MediaInfo report for the given media file has been written
+         * to the given report file.
+         */
+        public void reportGenerated(File mediaFile, File report) throws Exception;
+
+        /**
+         * Invoked once processing of the given media file is over, whether or not its
+         * report was generated, so that temporary files may be released.
+         */
+        public void finished(File mediaFile, File report);
+    }
+
+    private MediaInfoProcess mediaInfo;
+
+    private ExecutorService workers;
+
+    private int capacity;
+
+    private Semaphore slots;
+
+    private List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * @param mediaInfo the (possibly timeout-limited) MediaInfo process to run
+     * @param threads the number of concurrent MediaInfo processes
+     */
+    public MediaInfoExtractor(MediaInfoProcess mediaInfo, int threads) {
+        this.mediaInfo = mediaInfo;
+        this.workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                // daemon threads so that an unfinished stage doesn't keep the JVM alive
+                Thread t = new Thread(r, "mediainfo-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.capacity = threads * 2;
+        // fair, so that awaitCompletion() isn't starved by a steady stream of submissions
+        this.slots = new Semaphore(capacity, true);
+    }
+
+    /**
+     * Queues the generation of a report for the given file, blocking if too many are
+     * already pending.  Failures are logged and reported by awaitCompletion().
+     */
+    public void submit(final File mediaFile, final File report, final ReportHandler handler) throws InterruptedException {
+        submit(mediaFile, null, report, handler);
+    }
+
+    /**
+     * Queues the generation of a report for a file that was downloaded from the given
+     * URI (or null if it wasn't downloaded), blocking if too many are already pending.
+     */
+    public void submit(final File mediaFile, final String sourceURI, final File report, final ReportHandler handler) throws InterruptedException {
+        slots.acquire();
+        try {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mediaInfo.generateMediaInfoReport(mediaFile, sourceURI, report);
+                        handler.reportGenerated(mediaFile, report);
+                    } catch (Throwable t) {
+                        LOGGER.error("Unable to generate technical metadata for " + mediaFile + "!", t);
+                        failures.add(mediaFile.getPath() + ": " + t.getMessage());
+                    } finally {
+                        try {
+                            handler.finished(mediaFile, report);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Waits until every submitted report has been generated and handled.  If any
+     * failed, an exception listing them is thrown (and the list is reset).
+     */
+    public void awaitCompletion() throws InterruptedException {
+        slots.acquire(capacity);
+        slots.release(capacity);
+        synchronized (failures) {
+            if (!failures.isEmpty()) {
+                final String message = failures.size() + " technical metadata reports failed: " + failures;
+                failures.clear();
+                throw new RuntimeException(message);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting reports and waits for those already submitted to be handled, so
+     * that none are lost when the JVM exits (the worker threads are daemons).
+     */
+    public void shutdown() throws InterruptedException {
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+}
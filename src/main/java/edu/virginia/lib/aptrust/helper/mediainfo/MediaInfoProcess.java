@@ -1,49 +1,183 @@
 package edu.virginia.lib.aptrust.helper.mediainfo;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.virginia.lib.aptrust.helper.ScratchSpace;
 
 /**
  * A java class that spawns a process running the MediaInfo command line program.
+ *
+ * The output of the process is redirected by the operating system straight into
+ * the report file (and its error output into a temporary file), so no java threads
+ * are needed to drain the process's streams.
  */
 public class MediaInfoProcess {
 
+    final private static Logger LOGGER = LoggerFactory.getLogger(MediaInfoProcess.class);
+
+    /**
+     * How long a process that has been asked to terminate is given to exit.
+     */
+    private static final long DESTROY_GRACE_MS = 5000;
+
+    /**
+     * The maximum number of characters of error output included in exception messages.
+     */
+    private static final int MAX_ERROR_LENGTH = 1024;
+
     private String mediaInfoCommandPath;
-    
+
+    /**
+     * The longest a single invocation may run before it is killed, or 0 to wait
+     * indefinitely.
+     */
+    private long timeoutMs;
+
+    /**
+     * If non-null, reports are reused from (and added to) this cache.
+     */
+    private MediaInfoReportCache cache;
+
     public MediaInfoProcess() throws IOException {
         if (MediaInfoProcess.class.getClassLoader().getResource("conf/mediainfo.properties") != null) {
             Properties p = new Properties();
             p.load(MediaInfoProcess.class.getClassLoader().getResourceAsStream("conf/mediainfo.properties"));
             mediaInfoCommandPath = p.getProperty("mediainfo-command");
+            if (p.getProperty("mediainfo-timeout-seconds") != null) {
+                setTimeout(Long.parseLong(p.getProperty("mediainfo-timeout-seconds").trim()), TimeUnit.SECONDS);
+            }
         } else {
             mediaInfoCommandPath = "mediainfo";
         }
     }
-    
+
     public MediaInfoProcess(String path) {
         mediaInfoCommandPath = path;
     }
-    
+
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeoutMs = unit.toMillis(timeout);
+    }
+
+    public void setCache(MediaInfoReportCache cache) {
+        this.cache = cache;
+    }
+
     public void generateMediaInfoReport(File mediaFile, File outputFile) throws IOException, InterruptedException {
-        Process p = new ProcessBuilder(mediaInfoCommandPath, "-f", mediaFile.getAbsolutePath()).start();
-        new Thread(new OutputDrainerThread(p.getInputStream(), new FileOutputStream(outputFile))).start();
-        new Thread(new OutputDrainerThread(p.getErrorStream(), null)).start();
-        int returnCode = p.waitFor();
-        if (returnCode != 0) {
-            throw new RuntimeException("Invalid return code for process!");
-        }
+        generate(mediaFile, null, outputFile, "-f");
     }
-    
+
+    /**
+     * Generates the full text report for a file that was downloaded from the given URI,
+     * so that a cached report for an earlier download of it may be reused.
+     */
+    public void generateMediaInfoReport(File mediaFile, String sourceURI, File outputFile) throws IOException, InterruptedException {
+        generate(mediaFile, sourceURI, outputFile, "-f");
+    }
+
     public void generateMediaInfoReportEBUCore(File mediaFile, File outputFile) throws IOException, InterruptedException {
-        Process p = new ProcessBuilder(mediaInfoCommandPath, "--Output=EBUCore", mediaFile.getAbsolutePath()).start();
-        new Thread(new OutputDrainerThread(p.getInputStream(), new FileOutputStream(outputFile))).start();
-        new Thread(new OutputDrainerThread(p.getErrorStream(), null)).start();
-        int returnCode = p.waitFor();
-        if (returnCode != 0) {
-            throw new RuntimeException("Invalid return code for process!");
+        generate(mediaFile, null, outputFile, "--Output=EBUCore");
+    }
+
+    /**
+     * Generates both the full text and the EBUCore reports.  The MediaInfo command line
+     * program can only produce one output format per invocation, so this runs it twice
+     * back to back; the second run reads the media file from the operating system's
+     * cache rather than from disk wherever the file fits there.
+     */
+    public void generateMediaInfoReports(File mediaFile, File textOutputFile, File ebuCoreOutputFile) throws IOException, InterruptedException {
+        generateMediaInfoReport(mediaFile, textOutputFile);
+        generateMediaInfoReportEBUCore(mediaFile, ebuCoreOutputFile);
+    }
+
+    private void generate(File mediaFile, String sourceURI, File outputFile, String format) throws IOException, InterruptedException {
+        if (cache != null && cache.retrieve(mediaFile, sourceURI, format, outputFile)) {
+            return;
+        }
+        run(outputFile, mediaInfoCommandPath, format, mediaFile.getAbsolutePath());
+        if (cache != null) {
+            cache.store(mediaFile, sourceURI, format, outputFile);
+        }
+    }
+
+    private void run(File outputFile, String ... command) throws IOException, InterruptedException {
+        final ScratchSpace.Lease errorLease = ScratchSpace.getDefault().lease("mediainfo", ".err", 0);
+        final File errorFile = errorLease.getFile();
+        try {
+            Process p = new ProcessBuilder(command).redirectOutput(outputFile).redirectError(errorFile).start();
+            try {
+                if (timeoutMs > 0) {
+                    if (!waitFor(p, timeoutMs)) {
+                        throw new RuntimeException("MediaInfo did not complete within " + timeoutMs + " ms for "
+                                + command[command.length - 1] + "!");
+                    }
+                } else {
+                    p.waitFor();
+                }
+            } finally {
+                reap(p);
+            }
+            int returnCode = p.exitValue();
+            if (returnCode != 0) {
+                throw new RuntimeException("Invalid return code for process! (" + returnCode + ") " + readError(errorFile));
+            }
+        } finally {
+            errorLease.release();
+        }
+    }
+
+    /**
+     * Ensures the given process has terminated: if it is still running (because we
+     * timed out or were interrupted) it is destroyed and given a few seconds to exit.
+     */
+    private static void reap(Process p) throws InterruptedException {
+        if (isRunning(p)) {
+            p.destroy();
+            if (!waitFor(p, DESTROY_GRACE_MS)) {
+                LOGGER.warn("MediaInfo process did not exit within " + DESTROY_GRACE_MS + " ms of being destroyed.");
+            }
         }
     }
-    
+
+    /**
+     * Waits up to the given number of milliseconds for the process to exit, polling at
+     * lengthening intervals since java 7 has no timed Process.waitFor().
+     * @return true if the process exited
+     */
+    private static boolean waitFor(Process p, long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        long interval = 10;
+        while (isRunning(p)) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(interval, remaining));
+            interval = Math.min(interval * 2, 500);
+        }
+        return true;
+    }
+
+    private static boolean isRunning(Process p) {
+        try {
+            p.exitValue();
+            return false;
+        } catch (IllegalThreadStateException ex) {
+            return true;
+        }
+    }
+
+    private static String readError(File errorFile) throws IOException {
+        final String error = new String(Files.readAllBytes(errorFile.toPath()), Charset.defaultCharset()).trim();
+        return error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) + "..." : error;
+    }
+
 }
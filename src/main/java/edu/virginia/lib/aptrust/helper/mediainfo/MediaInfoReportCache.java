@@ -0,0 +1,215 @@
+package edu.virginia.lib.aptrust.helper.mediainfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent, size limited cache of MediaInfo reports stored in a local directory.
+ * Reports are keyed by the identity of the media file they describe: its canonical
+ * path, size and last modified time (and optionally a digest of its first and last
+ * megabyte), along with the report format.  A changed file therefore never matches
+ * its old report.  A file that was downloaded to a temporary location is instead
+ * identified by the URI it was downloaded from and its size, so that a later download
+ * of the same file (to a different temporary file) finds the report.
+ *
+ * When the reports in the cache exceed the configured size, the least recently used
+ * are deleted.  Recency is recorded as the last modified time of each report file so
+ * that it survives restarts.
+ */
+public class MediaInfoReportCache {
+
+    final private static Logger LOGGER = LoggerFactory.getLogger(MediaInfoReportCache.class);
+
+    private static final String SUFFIX = ".mediainfo";
+
+    private static final int PARTIAL_HASH_BYTES = 1024 * 1024;
+
+    private File directory;
+
+    private long maxBytes;
+
+    private boolean partialHash;
+
+    private long totalBytes;
+
+    /**
+     * The size of every cached report by key, least recently used first.
+     */
+    private LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /**
+     * @param directory the directory in which reports are stored (created if necessary)
+     * @param maxBytes the total size of reports beyond which the least recently used
+     *                 are evicted
+     * @param partialHash if true, the first and last megabyte of each media file is
+     *                    also digested to identify it, guarding against files that
+     *                    were rewritten without a change in size or modification time
+     */
+    public MediaInfoReportCache(File directory, long maxBytes, boolean partialHash) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.partialHash = partialHash;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory + "!");
+        }
+        final File[] reports = directory.listFiles();
+        final List<File> existing = new ArrayList<File>();
+        for (File f : reports) {
+            if (f.getName().endsWith(SUFFIX)) {
+                existing.add(f);
+            } else if (f.getName().endsWith(".tmp")) {
+                // left behind by an interrupted store()
+                f.delete();
+            }
+        }
+        Collections.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+        for (File f : existing) {
+            entries.put(f.getName().substring(0, f.getName().length() - SUFFIX.length()), f.length());
+            totalBytes += f.length();
+        }
+        evict();
+        LOGGER.info("MediaInfo report cache " + directory + " contains " + entries.size() + " reports (" + totalBytes + " bytes).");
+    }
+
+    /**
+     * Copies the cached report of the given format for the given media file to the given
+     * output file.
+     * @return true if a report was found, false if there was no cached report
+     */
+    public boolean retrieve(File mediaFile, String format, File outputFile) throws IOException {
+        return retrieve(mediaFile, null, format, outputFile);
+    }
+
+    /**
+     * Copies the cached report of the given format for the given media file to the given
+     * output file.
+     * @param sourceURI the URI from which the media file was downloaded, or null if it
+     *                  is identified by its local path
+     * @return true if a report was found, false if there was no cached report
+     */
+    public boolean retrieve(File mediaFile, String sourceURI, String format, File outputFile) throws IOException {
+        final String key = getKey(mediaFile, sourceURI, format);
+        synchronized (this) {
+            final Long size = entries.get(key);
+            if (size == null) {
+                return false;
+            }
+            final File report = getReportFile(key);
+            if (!report.exists()) {
+                entries.remove(key);
+                totalBytes -= size;
+                return false;
+            }
+            Files.copy(report.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            report.setLastModified(System.currentTimeMillis());
+            LOGGER.debug("Reused cached MediaInfo report for " + mediaFile + ".");
+            return true;
+        }
+    }
+
+    /**
+     * Adds a copy of the given report of the given format for the given media file to
+     * the cache.
+     */
+    public void store(File mediaFile, String format, File report) throws IOException {
+        store(mediaFile, null, format, report);
+    }
+
+    /**
+     * Adds a copy of the given report of the given format for the given media file to
+     * the cache.
+     * @param sourceURI the URI from which the media file was downloaded, or null if it
+     *                  is identified by its local path
+     */
+    public void store(File mediaFile, String sourceURI, String format, File report) throws IOException {
+        final String key = getKey(mediaFile, sourceURI, format);
+        final File temp = File.createTempFile("report", ".tmp", directory);
+        Files.copy(report.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        synchronized (this) {
+            final File cached = getReportFile(key);
+            final Long previous = entries.remove(key);
+            if (previous != null) {
+                totalBytes -= previous;
+            }
+            Files.move(temp.toPath(), cached.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            entries.put(key, cached.length());
+            totalBytes += cached.length();
+            evict();
+        }
+    }
+
+    private synchronized void evict() {
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> lru = it.next();
+            totalBytes -= lru.getValue();
+            getReportFile(lru.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    private File getReportFile(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * Gets a key that identifies the given file's current content and the report format.
+     * Downloaded files are identified by their source rather than by the (temporary)
+     * path and modification time of the copy.
+     */
+    private String getKey(File mediaFile, String sourceURI, String format) throws IOException {
+        final MessageDigest digest = getSHA1();
+        final String identity = sourceURI != null
+                ? sourceURI + "\n" + mediaFile.length() + "\n" + format
+                : mediaFile.getCanonicalPath() + "\n" + mediaFile.length() + "\n" + mediaFile.lastModified() + "\n" + format;
+        digest.update(identity.getBytes(Charset.forName("UTF-8")));
+        if (partialHash) {
+            final RandomAccessFile raf = new RandomAccessFile(mediaFile, "r");
+            try {
+                final byte[] buffer = new byte[(int) Math.min(PARTIAL_HASH_BYTES, raf.length())];
+                raf.readFully(buffer);
+                digest.update(buffer);
+                raf.seek(Math.max(0, raf.length() - buffer.length));
+                raf.readFully(buffer);
+                digest.update(buffer);
+            } finally {
+                raf.close();
+            }
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest getSHA1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
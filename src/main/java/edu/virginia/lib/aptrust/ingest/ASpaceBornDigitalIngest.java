@@ -34,7 +34,8 @@ public class ASpaceBornDigitalIngest extends AbstractIngest {
             fis.close();
         }
 
-        FusekiReader fuseki = new FusekiReader(getRequiredProperty(p, "triplestore-url"));
+        FusekiReader fuseki = new FusekiReader(getRequiredProperty(p, "triplestore-url"),
+                FusekiReader.getSlowQueryThreshold(getOptionalProperty(p, "triplestore-slow-query-ms")));
         Fedora4Client f4Client = new Fedora4Client(getOptionalProperty(p, "f4-username"), getOptionalProperty(p, "f4-password"), getRequiredProperty(p, "f4-url"));
 
         ASpaceBornDigitalIngest i = new ASpaceBornDigitalIngest(f4Client, fuseki);
@@ -8,7 +8,10 @@ import edu.virginia.lib.aptrust.helper.FederatedFile;
 import edu.virginia.lib.aptrust.helper.Fedora4Client;
 import edu.virginia.lib.aptrust.helper.FusekiReader;
 import edu.virginia.lib.aptrust.helper.HttpHelper;
+import edu.virginia.lib.aptrust.helper.ScratchSpace;
+import edu.virginia.lib.aptrust.helper.mediainfo.MediaInfoExtractor;
 import edu.virginia.lib.aptrust.helper.mediainfo.MediaInfoProcess;
+import edu.virginia.lib.aptrust.helper.mediainfo.MediaInfoReportCache;
 
 import org.fcrepo.client.FcrepoOperationFailedException;
 import org.slf4j.Logger;
@@ -21,6 +24,10 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractIngest {
 	
@@ -28,14 +35,83 @@ public abstract class AbstractIngest {
 
     final private static Logger LOGGER = LoggerFactory.getLogger(AbstractIngest.class);
 
+    /**
+     * The number of resources whose propagation is confirmed by each query in
+     * waitForIndexUpdate().
+     */
+    private static final int INDEX_WAIT_BATCH_SIZE = 50;
+
     protected Fedora4Client f4Writer;
 
     protected FusekiReader triplestore;
 
+    /**
+     * If non-null, technical metadata for new file resources is generated by this
+     * stage rather than inline.
+     */
+    private MediaInfoExtractor techMdExtractor;
+
+    private MediaInfoProcess mediaInfo;
+
     public AbstractIngest(Fedora4Client f4Writer, FusekiReader triplestore) {
         this.f4Writer = f4Writer;
         this.triplestore = triplestore;
     }
+
+    /**
+     * Causes technical metadata for subsequently created file resources to be generated
+     * by up to the given number of concurrent MediaInfo processes, each of which is killed
+     * if it runs longer than the given timeout.  createOrLocateFileResource() then returns
+     * as soon as the file resource exists and the technical metadata binary is attached
+     * when its report is ready.  Callers must invoke waitForTechnicalMetadata() before
+     * finishing.
+     */
+    public void enableConcurrentTechnicalMetadataExtraction(int threads, long timeout, TimeUnit unit) throws IOException {
+        getMediaInfoProcess().setTimeout(timeout, unit);
+        techMdExtractor = new MediaInfoExtractor(getMediaInfoProcess(), threads);
+    }
+
+    /**
+     * Causes MediaInfo reports to be kept in (and reused from) a cache in the given
+     * directory, so that technical metadata for files that haven't changed since a
+     * previous run is not regenerated.
+     * @param maxBytes the size beyond which the least recently used reports are evicted
+     * @param partialHash whether files are identified by a digest of their first and last
+     *                    megabyte in addition to their path, size and modification time
+     */
+    public void enableTechnicalMetadataCache(File directory, long maxBytes, boolean partialHash) throws IOException {
+        getMediaInfoProcess().setCache(new MediaInfoReportCache(directory, maxBytes, partialHash));
+    }
+
+    private MediaInfoProcess getMediaInfoProcess() throws IOException {
+        if (mediaInfo == null) {
+            mediaInfo = new MediaInfoProcess();
+        }
+        return mediaInfo;
+    }
+
+    /**
+     * Waits until the technical metadata for every file resource created so far has been
+     * attached.  This is a no-op unless enableConcurrentTechnicalMetadataExtraction() was
+     * called.
+     */
+    public void waitForTechnicalMetadata() throws InterruptedException {
+        if (techMdExtractor != null) {
+            techMdExtractor.awaitCompletion();
+        }
+    }
+
+    /**
+     * Stops the concurrent technical metadata extraction threads once the reports
+     * already submitted have been handled.  Technical metadata for any file resources
+     * created afterwards is generated inline.
+     */
+    public void shutdownTechnicalMetadataExtraction() throws InterruptedException {
+        if (techMdExtractor != null) {
+            techMdExtractor.shutdown();
+            techMdExtractor = null;
+        }
+    }
     
     /**
      * If all of the resources produced by a subclass of this class should be 
@@ -120,27 +196,51 @@ public abstract class AbstractIngest {
             f4Writer.addURIProperty(id, RdfConstants.HAS_BINARY, masterId);
 
             // create tech metadata resource
-            File mediaInfo = File.createTempFile("media-info", ".technical-metadata.txt");
-            if (ff.getFile().exists()) {
-                new MediaInfoProcess().generateMediaInfoReport(ff.getFile(), mediaInfo);
-            } else {
-                LOGGER.warn("Downloading file " + ff.getFile().getName() + " to generate mediainfo report.");
-                // download it to generate the MediaInfo Report
-                File export = File.createTempFile("master-file-temp", ff.getFile().getName());
-                FileOutputStream fos = new FileOutputStream(export);
-                try {
-                    HttpHelper.getContentAtURL(ff.getURI().toString(), fos);
-                } finally {
-                    fos.close();
+            final ScratchSpace.Lease mediaInfo = ScratchSpace.getDefault().lease("media-info", ".technical-metadata.txt", 0);
+            ScratchSpace.Lease export = null;
+            boolean handedOff = false;
+            try {
+                File mediaFile = ff.getFile();
+                String sourceURI = null;
+                if (!mediaFile.exists()) {
+                    LOGGER.warn("Downloading file " + ff.getFile().getName() + " to generate mediainfo report.");
+                    // download it to generate the MediaInfo Report
+                    export = ScratchSpace.getDefault().lease("master-file-temp", ff.getFile().getName(), HttpHelper.getContentLength(ff.getURI()));
+                    FileOutputStream fos = new FileOutputStream(export.getFile());
+                    try {
+                        HttpHelper.getContentAtURL(ff.getURI().toString(), fos);
+                    } finally {
+                        fos.close();
+                    }
+                    export.updateSize();
+                    mediaFile = export.getFile();
+                    sourceURI = ff.getURI();
                 }
-                new MediaInfoProcess().generateMediaInfoReport(export, mediaInfo);
-            }
-            final URI techMDId = f4Writer.createNonRDFResource(id, mediaInfo, "text/plain");
-            final URI techMDURI = new URI(techMDId.toString() + "/fcr:metadata");
-            f4Writer.addLiteralProperty(techMDURI, RdfConstants.FILENAME, RdfConstants.TECH_MD_FILENAME + ".txt");
-            f4Writer.addLiteralProperty(techMDURI, RdfConstants.DC_TITLE, RdfConstants.TECH_MD_FILENAME + ".txt");
-            f4Writer.addURIProperty(id, RdfConstants.HAS_TECH_MD, techMDId);
+                if (techMdExtractor != null) {
+                    final URI fileId = id;
+                    final ScratchSpace.Lease downloaded = export;
+                    techMdExtractor.submit(mediaFile, sourceURI, mediaInfo.getFile(), new MediaInfoExtractor.ReportHandler() {
+                        @Override
+                        public void reportGenerated(File mediaFile, File report) throws Exception {
+                            attachTechnicalMetadata(fileId, report);
+                        }
 
+                        @Override
+                        public void finished(File mediaFile, File report) {
+                            release(mediaInfo, downloaded);
+                        }
+                    });
+                    // the extractor now owns (and will release) the temporary files
+                    handedOff = true;
+                } else {
+                    getMediaInfoProcess().generateMediaInfoReport(mediaFile, sourceURI, mediaInfo.getFile());
+                    attachTechnicalMetadata(id, mediaInfo.getFile());
+                }
+            } finally {
+                if (!handedOff) {
+                    release(mediaInfo, export);
+                }
+            }
 
             while (syncIndexUpdate && lookupFedora4URI(ff.getURI(), RdfConstants.FILE_TYPE) == null) {
                 LOGGER.debug("Waiting for file resource creation to propagate to triplestore...");
@@ -154,6 +254,25 @@ public abstract class AbstractIngest {
         return id;
     }
 
+    private static void release(ScratchSpace.Lease ... leases) {
+        for (ScratchSpace.Lease lease : leases) {
+            if (lease != null) {
+                lease.release();
+            }
+        }
+    }
+
+    /**
+     * Adds the given MediaInfo report as the technical metadata binary for the given file resource.
+     */
+    private void attachTechnicalMetadata(URI fileId, File report) throws IOException, FcrepoOperationFailedException, URISyntaxException {
+        final URI techMDId = f4Writer.createNonRDFResource(fileId, report, "text/plain");
+        final URI techMDURI = new URI(techMDId.toString() + "/fcr:metadata");
+        f4Writer.addLiteralProperty(techMDURI, RdfConstants.FILENAME, RdfConstants.TECH_MD_FILENAME + ".txt");
+        f4Writer.addLiteralProperty(techMDURI, RdfConstants.DC_TITLE, RdfConstants.TECH_MD_FILENAME + ".txt");
+        f4Writer.addURIProperty(fileId, RdfConstants.HAS_TECH_MD, techMDId);
+    }
+
     /**
      * Finds or creates a resource representing a File.
      * @param syncIndexUpdate if true and this method creates a new resource, it waits until that
@@ -316,6 +435,40 @@ public abstract class AbstractIngest {
         }
     }
 
+    /**
+     * Waits until every one of the given resources (created with syncIndexUpdate=false) is
+     * findable by its dc:identifier and rdf:type within the RDF triplestore.  This confirms
+     * the propagation of a whole batch of new resources with one query per poll (per
+     * INDEX_WAIT_BATCH_SIZE resources, which keeps each query within the length of a GET
+     * request) rather than one wait per resource.
+     */
+    protected void waitForIndexUpdate(Collection<URI> uris) throws IOException {
+        final List<URI> pending = new ArrayList<URI>(uris);
+        for (int i = 0; i < pending.size(); i += INDEX_WAIT_BATCH_SIZE) {
+            final List<URI> batch = pending.subList(i, Math.min(pending.size(), i + INDEX_WAIT_BATCH_SIZE));
+            final StringBuilder values = new StringBuilder();
+            for (URI uri : batch) {
+                values.append(" <").append(uri).append(">");
+            }
+            final String query =
+                    "SELECT (COUNT(DISTINCT ?s) AS ?count)\n" +
+                    "WHERE {\n" +
+                    "  VALUES ?s {" + values + " }\n" +
+                    "  ?s <" + RdfConstants.DC_IDENTIFIER + "> ?id .\n" +
+                    "  ?s <" + RdfConstants.RDF_TYPE + "> ?type \n" +
+                    "}";
+            LOGGER.trace(query);
+            while (Integer.parseInt(triplestore.getFirstAndOnlyQueryResponse(query).get("count")) < batch.size()) {
+                LOGGER.debug("Waiting for " + (pending.size() - i) + " resources to propagate to triplestore...");
+                try {
+                    Thread.sleep(MS_TO_WAIT);
+                } catch (InterruptedException e) {
+                    // no worries, we just got woken up early...
+                }
+            }
+        }
+    }
+
     /**
      * Gets the fedora 4 URI for a resource with the given dc:identifier and rdf:type.
      */
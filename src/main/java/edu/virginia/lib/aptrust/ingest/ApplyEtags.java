@@ -44,7 +44,8 @@ public class ApplyEtags {
             fis.close();
         }
         
-        FusekiReader fuseki = new FusekiReader(getRequiredProperty(p, "triplestore-url"));
+        FusekiReader fuseki = new FusekiReader(getRequiredProperty(p, "triplestore-url"),
+                FusekiReader.getSlowQueryThreshold(getOptionalProperty(p, "triplestore-slow-query-ms")));
         Fedora4Client f4Client = new Fedora4Client(getOptionalProperty(p, "f4-username"), getOptionalProperty(p, "f4-password"), getRequiredProperty(p, "f4-url"));
         APTrustAPIHelper aptrust = new APTrustAPIHelper(getRequiredProperty(p, "aptrust-api-url"), getRequiredProperty(p, "aptrust-api-key"), getRequiredProperty(p, "aptrust-api-user"));
         
@@ -13,15 +13,22 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.stream.XMLStreamException;
 
 import org.fcrepo.client.FcrepoOperationFailedException;
-import org.xml.sax.SAXException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.yourmediashelf.fedora.client.FedoraClientException;
 
@@ -44,6 +51,8 @@ import edu.virginia.lib.aptrust.helper.FusekiReader;
  */
 public class ArchiveItIngest extends AbstractIngest implements RdfConstants {
     
+    final private static Logger LOGGER = LoggerFactory.getLogger(ArchiveItIngest.class);
+    
     private static final String INC_EDU = "http://rightsstatements.org/vocab/InC-EDU/1.0/";
     
     public static void main(String [] args) throws Exception {
@@ -55,12 +64,21 @@ public class ArchiveItIngest extends AbstractIngest implements RdfConstants {
             fis.close();
         }
         
-        FusekiReader fuseki = new FusekiReader(getRequiredProperty(p, "triplestore-url"));
+        FusekiReader fuseki = new FusekiReader(getRequiredProperty(p, "triplestore-url"),
+                FusekiReader.getSlowQueryThreshold(getOptionalProperty(p, "triplestore-slow-query-ms")));
         Fedora4Client f4Client = new Fedora4Client(getOptionalProperty(p, "f4-username"), getOptionalProperty(p, "f4-password"), getRequiredProperty(p, "f4-url"));
         
         ArchiveItClient ac = new ArchiveItClient(getRequiredProperty(p, "archive-it-username"), getRequiredProperty(p, "archive-it-password"));
+        final String listingCache = getOptionalProperty(p, "archive-it-listing-cache-dir");
+        if (listingCache != null && listingCache.trim().length() > 0) {
+            ac.setListingCacheDirectory(new File(listingCache.trim()));
+        }
         
         ArchiveItIngest ai = new ArchiveItIngest(f4Client, fuseki, ac);
+        final String collectionThreads = getOptionalProperty(p, "archive-it-collection-threads");
+        final String warcThreads = getOptionalProperty(p, "archive-it-warc-threads");
+        ai.setConcurrency(collectionThreads == null || collectionThreads.trim().length() == 0 ? 4 : Integer.parseInt(collectionThreads.trim()),
+                warcThreads == null || warcThreads.trim().length() == 0 ? 8 : Integer.parseInt(warcThreads.trim()));
         
         ai.findOrCreateArchiveItCollection("5422", "UVA Rolling Stone Article November 19, 2014 and Its Aftermath", new File("5422-collection-seed-list.csv"));
         ai.findOrCreateArchiveItCollection("6341", "UVA Rollingstones Aftermath (Part II)", new File("6341-collection-seed-list.csv"));
@@ -74,6 +92,10 @@ public class ArchiveItIngest extends AbstractIngest implements RdfConstants {
     
     private ExternalSystem archiveItSystem;
     
+    private int collectionThreads = 1;
+    
+    private int warcThreads = 1;
+    
     public ArchiveItIngest(Fedora4Client f4Writer, FusekiReader triplestore, ArchiveItClient archiveIt) throws IOException, FcrepoOperationFailedException, URISyntaxException, FedoraClientException {
         super(f4Writer, triplestore);
         archiveItClient = archiveIt;
@@ -81,12 +103,24 @@ public class ArchiveItIngest extends AbstractIngest implements RdfConstants {
         archiveItSystem = findOrCreateArchiveItSystemResource(); 
     }
 
+    /**
+     * Sets the number of collections updated at once, and the number of warc resources
+     * (across all of those collections) created at once.
+     */
+    public void setConcurrency(int collectionThreads, int warcThreads) {
+        this.collectionThreads = collectionThreads;
+        this.warcThreads = warcThreads;
+    }
+
     /**
      * Walks through all the existing ArchiveIt collections in Fedora and updates 
      * their contained crawl and warc references based on values retrieved from the
-     * ArchiveIt API. 
+     * ArchiveIt API.  Collections whose listing hasn't changed since it was last
+     * reconciled (see ArchiveItClient.setListingCacheDirectory()) are skipped.
+     * Collections are updated concurrently (see setConcurrency()); if any fail, the
+     * others are still completed before an exception listing the failures is thrown.
      */
-    public void updateArchiveItCollections() throws IOException, IllegalStateException, XPathExpressionException, ParserConfigurationException, SAXException, FcrepoOperationFailedException, URISyntaxException, InterruptedException {
+    public void updateArchiveItCollections() throws IOException, XMLStreamException, FcrepoOperationFailedException, URISyntaxException, InterruptedException {
         // find the collections
         final String findCollectionsQuery = "PREFIX pres: <http://fedora.lib.virginia.edu/preservation#>\n" + 
                 "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" + 
@@ -98,93 +132,194 @@ public class ArchiveItIngest extends AbstractIngest implements RdfConstants {
                 "  ?collection dc:identifier ?id\n" + 
                 "}\n";
         
-        for (Map<String, String> m : triplestore.getQueryResponse(findCollectionsQuery)) {
-            final String collectionUri = m.get("collection");
-            final String archiveItCollectionId = m.get("id");
-            
-            // A map containing a key for each crawl title in Fedora whose values is a collection of the warc filenames 
-            // from that crawl within fedora.
-            Map<String, Collection<String>> crawlTitleToWarcFilenameMap = new HashMap<String, Collection<String>>();
-            // A map from warc filenames in fedora to the recorded MD5 checksums.
-            Map<String, String> warcFilenameToMD5Map = new HashMap<String, String>();
-            
-            final String findCrawlWarcsQuery = "PREFIX pres: <http://fedora.lib.virginia.edu/preservation#>\n" + 
-                    "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" + 
-                    "PREFIX dc: <http://purl.org/dc/elements/1.1/>\n" + 
-                    "PREFIX hash: <http://id.loc.gov/vocabulary/preservation/cryptographicHashFunctions/>\n" + 
-                    "\n" + 
-                    "SELECT ?crawl ?filename ?md5\n" + 
-                    "WHERE {\n" + 
-                    "       ?r <http://fedora.info/definitions/v4/repository#hasParent> <" + collectionUri +"> .\n" + 
-                    "       ?r dc:identifier ?crawl .\n" + 
-                    "       ?warc <http://fedora.info/definitions/v4/repository#hasParent> ?r .\n" + 
-                    "       ?warc dc:identifier ?filename .\n" + 
-                    "       ?warc hash:md5 ?md5 \n" + 
-                    "}\n" + 
-                    "";
-            for (Map<String, String> entry : triplestore.getQueryResponse(findCrawlWarcsQuery)) {
-                final String crawl = entry.get("crawl");
-                Collection<String> warcs = crawlTitleToWarcFilenameMap.get(crawl);
-                if (warcs == null) {
-                    warcs = new ArrayList<String>();
-                    crawlTitleToWarcFilenameMap.put(crawl, warcs);
+        final ExecutorService collectionPool = Executors.newFixedThreadPool(collectionThreads);
+        // warc resources (across all collections) are created on this pool
+        final ExecutorService warcPool = Executors.newFixedThreadPool(warcThreads);
+        try {
+            final Map<String, Future<Void>> results = new LinkedHashMap<String, Future<Void>>();
+            for (Map<String, String> m : triplestore.getQueryResponse(findCollectionsQuery)) {
+                final String collectionUri = m.get("collection");
+                final String archiveItCollectionId = m.get("id");
+                results.put(archiveItCollectionId, collectionPool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        updateArchiveItCollection(collectionUri, archiveItCollectionId, warcPool);
+                        return null;
+                    }
+                }));
+            }
+            final List<String> failures = new ArrayList<String>();
+            for (Map.Entry<String, Future<Void>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                } catch (ExecutionException ex) {
+                    LOGGER.error("Unable to update collection " + result.getKey() + "!", ex.getCause());
+                    failures.add(result.getKey() + ": " + ex.getCause().getMessage());
                 }
-                warcs.add(entry.get("filename"));
-                warcFilenameToMD5Map.put(entry.get("filename"), entry.get("md5"));
             }
-            
-            final Set<String> crawlChecklist = new HashSet<String>(crawlTitleToWarcFilenameMap.keySet());
-            
-            // for each crawl/warc in archiveIt, compare with fedora
-            for (Crawl c : archiveItClient.getCrawls(archiveItCollectionId)) {
-                System.out.println("Processing crawl \"" + c.getLabel() + "\"");
-                crawlChecklist.remove(c.getLabel());
-                if (crawlTitleToWarcFilenameMap.containsKey(c.getLabel())) {
-                    // make sure the crawl is the same in fedora as in the API
-                    final Set<String> warcChecklist = new HashSet<String>(crawlTitleToWarcFilenameMap.get(c.getLabel()));
-                    for (Warc w : c.getWarcs()) {
-                        if (!warcChecklist.remove(w.getFilename())) {
-                            throw new RuntimeException("Warc with filename " + w.getFilename() + " is not in Fedora for the crawl " + c.getLabel() + "!");
-                        } else if (!warcFilenameToMD5Map.get(w.getFilename()).equals(w.getMD5())) {
-                            throw new RuntimeException("Warc with filename " + w.getFilename() + " has a different MD5 in fedora (" + warcFilenameToMD5Map.get(w.getFilename()) + ") than in ArchiveIt (" + w.getMD5() + ")!");
-                        } else {
-                            System.out.println("Warc with filename " + w.getFilename() + " is already known to fedora with a checksum of " + w.getMD5() + ".");
-                        }
-                    }
-                    if (!warcChecklist.isEmpty()) {
-                        throw new RuntimeException(warcChecklist.size() + " warc files exist in fedora for crawl " + c.getLabel() + " but aren't referenced by ArchiveIt!");
-                    }
-                } else {
-                    // put this crawl information into Fedora
-                    final URI crawlUri = createOrLocateTypedResource(collectionUri, c.getLabel(), new URI(ARCHIVE_IT_CRAWL_TYPE), true, true, new ResourceInitializer() {
+            if (!failures.isEmpty()) {
+                throw new RuntimeException(failures.size() + " collections could not be updated: " + failures);
+            }
+        } finally {
+            collectionPool.shutdownNow();
+            warcPool.shutdownNow();
+        }
+    }
 
-                        @Override
-                        public void initializeResource(URI uri) throws UnsupportedEncodingException, URISyntaxException,
-                                FcrepoOperationFailedException, IOException {
-                            f4Writer.addURIProperty(uri, RdfConstants.RIGHTS, new URI(INC_EDU));
-                            
-                        }});
-                    System.out.println("Added crawl " + crawlUri + ".");
-                    for (final Warc w : c.getWarcs()) {
-                        final URI warcUri = createOrLocateTypedResource(crawlUri.toString(), w.getFilename(), new URI(ARCHIVE_IT_WARC_TYPE), false, true, new ResourceInitializer() {
+    private void updateArchiveItCollection(final String collectionUri, final String archiveItCollectionId, final ExecutorService warcPool) throws IOException, XMLStreamException, FcrepoOperationFailedException, URISyntaxException, InterruptedException {
+        final ArchiveItClient.Listing listing = archiveItClient.getListing(archiveItCollectionId);
+        try {
+            if (listing.isUnchanged()) {
+                LOGGER.info("Skipping collection " + archiveItCollectionId + " because its listing hasn't changed since it was last reconciled.");
+            } else {
+                reconcileCollection(collectionUri, archiveItCollectionId, listing, warcPool);
+                listing.markReconciled();
+            }
+        } finally {
+            listing.close();
+        }
+    }
+
+    /**
+     * Updates the crawl and warc references of the given collection to match the given listing,
+     * creating warc resources on the given pool.
+     */
+    private void reconcileCollection(final String collectionUri, final String archiveItCollectionId, final ArchiveItClient.Listing listing, final ExecutorService warcPool) throws IOException, XMLStreamException, FcrepoOperationFailedException, URISyntaxException, InterruptedException {
+        // A map containing a key for each crawl title in Fedora whose values is a collection of the warc filenames 
+        // from that crawl within fedora.
+        final Map<String, Collection<String>> crawlTitleToWarcFilenameMap = new HashMap<String, Collection<String>>();
+        // A map from warc filenames in fedora to the recorded MD5 checksums.
+        final Map<String, String> warcFilenameToMD5Map = new HashMap<String, String>();
+        
+        final String findCrawlWarcsQuery = "PREFIX pres: <http://fedora.lib.virginia.edu/preservation#>\n" + 
+                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" + 
+                "PREFIX dc: <http://purl.org/dc/elements/1.1/>\n" + 
+                "PREFIX hash: <http://id.loc.gov/vocabulary/preservation/cryptographicHashFunctions/>\n" + 
+                "\n" + 
+                "SELECT ?crawl ?filename ?md5\n" + 
+                "WHERE {\n" + 
+                "       ?r <http://fedora.info/definitions/v4/repository#hasParent> <" + collectionUri +"> .\n" + 
+                "       ?r dc:identifier ?crawl .\n" + 
+                "       ?warc <http://fedora.info/definitions/v4/repository#hasParent> ?r .\n" + 
+                "       ?warc dc:identifier ?filename .\n" + 
+                "       ?warc hash:md5 ?md5 \n" + 
+                "}\n" + 
+                "";
+        for (Map<String, String> entry : triplestore.getQueryResponse(findCrawlWarcsQuery)) {
+            final String crawl = entry.get("crawl");
+            Collection<String> warcs = crawlTitleToWarcFilenameMap.get(crawl);
+            if (warcs == null) {
+                warcs = new ArrayList<String>();
+                crawlTitleToWarcFilenameMap.put(crawl, warcs);
+            }
+            warcs.add(entry.get("filename"));
+            warcFilenameToMD5Map.put(entry.get("filename"), entry.get("md5"));
+        }
+        
+        final Set<String> crawlChecklist = new HashSet<String>(crawlTitleToWarcFilenameMap.keySet());
+        
+        // for each crawl/warc in archiveIt (streamed from the listing), compare with fedora
+        try {
+            listing.processCrawls(new ArchiveItClient.CrawlHandler() {
+                @Override
+                public void handleCrawl(Crawl c) throws Exception {
+                    LOGGER.info("Processing crawl \"" + c.getLabel() + "\" of collection " + archiveItCollectionId + ".");
+                    crawlChecklist.remove(c.getLabel());
+                    if (crawlTitleToWarcFilenameMap.containsKey(c.getLabel())) {
+                        // make sure the crawl is the same in fedora as in the API
+                        final Set<String> warcChecklist = new HashSet<String>(crawlTitleToWarcFilenameMap.get(c.getLabel()));
+                        for (Warc w : c.getWarcs()) {
+                            if (!warcChecklist.remove(w.getFilename())) {
+                                throw new RuntimeException("Warc with filename " + w.getFilename() + " is not in Fedora for the crawl " + c.getLabel() + "!");
+                            } else if (!warcFilenameToMD5Map.get(w.getFilename()).equals(w.getMD5())) {
+                                throw new RuntimeException("Warc with filename " + w.getFilename() + " has a different MD5 in fedora (" + warcFilenameToMD5Map.get(w.getFilename()) + ") than in ArchiveIt (" + w.getMD5() + ")!");
+                            } else {
+                                LOGGER.debug("Warc with filename " + w.getFilename() + " of collection " + archiveItCollectionId + " is already known to fedora with a checksum of " + w.getMD5() + ".");
+                            }
+                        }
+                        if (!warcChecklist.isEmpty()) {
+                            throw new RuntimeException(warcChecklist.size() + " warc files exist in fedora for crawl " + c.getLabel() + " but aren't referenced by ArchiveIt!");
+                        }
+                    } else {
+                        // put this crawl information into Fedora, confirming that it (and all of
+                        // its warcs) reached the triplestore once they've all been created
+                        final URI crawlUri = createOrLocateTypedResource(collectionUri, c.getLabel(), new URI(ARCHIVE_IT_CRAWL_TYPE), true, false, new ResourceInitializer() {
 
                             @Override
-                            public void initializeResource(URI uri) throws UnsupportedEncodingException,
-                                    URISyntaxException, FcrepoOperationFailedException, IOException {
-                                f4Writer.addLiteralProperty(uri, RDF_TYPE, EXTERNAL_RESOURCE_TYPE);
-                                f4Writer.addURIProperty(uri, EXTERNAL_SYSTEM, archiveItSystem.getFedora4Uri());
-                                f4Writer.addLiteralProperty(uri, EXTERNAL_ID, w.getURL());
-                                f4Writer.addLiteralProperty(uri, MD5_HASH, w.getMD5());
-                            }} );
-                        System.out.println("Added warc " + warcUri + ".");
-                        
+                            public void initializeResource(URI uri) throws UnsupportedEncodingException, URISyntaxException,
+                                    FcrepoOperationFailedException, IOException {
+                                f4Writer.addURIProperty(uri, RdfConstants.RIGHTS, new URI(INC_EDU));
+                                
+                            }});
+                        LOGGER.info("Added crawl " + crawlUri + " to collection " + archiveItCollectionId + ".");
+                        final List<URI> created = new ArrayList<URI>();
+                        created.add(crawlUri);
+                        created.addAll(createWarcs(archiveItCollectionId, crawlUri, c.getWarcs(), warcPool));
+                        waitForIndexUpdate(created);
                     }
                 }
+            });
+        } catch (IOException | XMLStreamException | FcrepoOperationFailedException | URISyntaxException | InterruptedException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            // not thrown by our handler
+            throw new RuntimeException(ex);
+        }
+        if (!crawlChecklist.isEmpty()) {
+            throw new RuntimeException(crawlChecklist.size() + " crawls exist in fedora for collection " + archiveItCollectionId + " but aren't referenced by ArchiveIt!");
+        }
+    }
+    
+    /**
+     * Creates resources for the given warcs within the given crawl (of the given ArchiveIt
+     * collection) concurrently (on the given pool), without waiting for each to reach the
+     * triplestore.  If any can't be created, those not yet started are cancelled and the
+     * first failure is thrown.
+     */
+    private List<URI> createWarcs(final String archiveItCollectionId, final URI crawlUri, final List<Warc> warcs, final ExecutorService warcPool) throws IOException, FcrepoOperationFailedException, URISyntaxException, InterruptedException {
+        final List<Future<URI>> results = new ArrayList<Future<URI>>();
+        for (final Warc w : warcs) {
+            results.add(warcPool.submit(new Callable<URI>() {
+                @Override
+                public URI call() throws Exception {
+                    final URI warcUri = createOrLocateTypedResource(crawlUri.toString(), w.getFilename(), new URI(ARCHIVE_IT_WARC_TYPE), false, false, new ResourceInitializer() {
+
+                        @Override
+                        public void initializeResource(URI uri) throws UnsupportedEncodingException,
+                                URISyntaxException, FcrepoOperationFailedException, IOException {
+                            f4Writer.addLiteralProperty(uri, RDF_TYPE, EXTERNAL_RESOURCE_TYPE);
+                            f4Writer.addURIProperty(uri, EXTERNAL_SYSTEM, archiveItSystem.getFedora4Uri());
+                            f4Writer.addLiteralProperty(uri, EXTERNAL_ID, w.getURL());
+                            f4Writer.addLiteralProperty(uri, MD5_HASH, w.getMD5());
+                        }} );
+                    LOGGER.info("Added warc " + warcUri + " to collection " + archiveItCollectionId + ".");
+                    return warcUri;
+                }
+            }));
+        }
+        final List<URI> uris = new ArrayList<URI>();
+        try {
+            for (Future<URI> result : results) {
+                uris.add(result.get());
+            }
+        } catch (ExecutionException ex) {
+            for (Future<URI> result : results) {
+                result.cancel(false);
             }
-            if (!crawlChecklist.isEmpty()) {
-                throw new RuntimeException(crawlChecklist.size() + " crawls exist in fedora for collection " + archiveItCollectionId + " but aren't referenced by ArchiveIt!");
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof FcrepoOperationFailedException) {
+                throw (FcrepoOperationFailedException) cause;
+            } else if (cause instanceof URISyntaxException) {
+                throw (URISyntaxException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
             }
         }
+        return uris;
     }
     
     /**
@@ -20,12 +20,25 @@ import org.fcrepo.client.FcrepoOperationFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A class that allows content for which Avalon is the system of record to
@@ -36,6 +49,21 @@ public class AvalonIngest extends AbstractIngest {
 
     final private static Logger LOGGER = LoggerFactory.getLogger(AvalonIngest.class);
 
+    /**
+     * The only solr fields used to build the object graph.
+     */
+    private static final String[] SOLR_FIELDS = new String[] { "id", "title_tesi", "is_part_of_ssim", "is_derivation_of_ssim" };
+
+    /**
+     * The maximum number of parts whose derivatives are requested in a single solr query.
+     */
+    private static final int DERIVATIVE_QUERY_BATCH_SIZE = 100;
+
+    /**
+     * The number of fedora 3 datastreams fetched concurrently.
+     */
+    private static final int DATASTREAM_FETCH_THREADS = 8;
+
     private SolrReader solr;
 
     private FedoraClient f3Client;
@@ -46,11 +74,27 @@ public class AvalonIngest extends AbstractIngest {
 
     private FederationMapper fm;
 
+    private ExecutorService datastreamFetcher;
+
+    /**
+     * The content of every datastream requested for the objects being synchronized,
+     * keyed by pid and datastream id.
+     */
+    private ConcurrentMap<String, Future<String>> datastreamCache = new ConcurrentHashMap<String, Future<String>>();
+
     public AvalonIngest(final SolrReader s, FusekiReader fuseki, FederationMapper fm, Fedora4Client f4Writer, FedoraClient f3Client, final String avalonBaseUrl) throws FcrepoOperationFailedException, IOException, URISyntaxException, FedoraClientException {
         super(f4Writer, fuseki);
         this.fm = fm;
         this.solr = s;
         this.f3Client = f3Client;
+        this.datastreamFetcher = Executors.newFixedThreadPool(DATASTREAM_FETCH_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "fedora3-datastream-fetch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
         rights = new RightsAssessor();
         avalon = super.findExternalSystem(avalonBaseUrl);
         if (avalon == null) {
@@ -67,48 +111,119 @@ public class AvalonIngest extends AbstractIngest {
     }
 
     public void syncToFedora4(String pid) throws SolrServerException, IOException, FcrepoOperationFailedException, URISyntaxException, FedoraClientException, InterruptedException {
-        final SolrDocument rootDoc = solr.getRecordsForQuery("id:\"" + pid + "\"").next();
+        // fetch the whole object graph from solr before writing anything
+        SolrDocument rootDoc = null;
+        final List<SolrDocument> parts = new ArrayList<SolrDocument>();
+        Iterator<SolrDocument> rootAndPartsIt = solr.getRecordsForQuery("id:\"" + pid + "\" OR is_part_of_ssim:\"info:fedora/" + pid + "\"", SOLR_FIELDS);
+        while (rootAndPartsIt.hasNext()) {
+            final SolrDocument doc = rootAndPartsIt.next();
+            if (pid.equals(doc.getFirstValue("id"))) {
+                rootDoc = doc;
+            } else {
+                parts.add(doc);
+            }
+        }
+        if (rootDoc == null) {
+            throw new RuntimeException("No solr record found for " + pid + "!");
+        }
+        final Map<String, List<SolrDocument>> partDerivatives = getDerivativesByPart(parts);
+
+        try {
+            // request the file paths for every part and derivative at once
+            for (SolrDocument part : parts) {
+                final String partPid = (String) part.getFirstValue("id");
+                prefetchDatastreamContent(partPid, "masterFile");
+                for (SolrDocument derivative : partDerivatives.get(partPid)) {
+                    prefetchDatastreamContent((String) derivative.getFirstValue("id"), "derivativeFile");
+                }
+            }
+
+            // Create the object
+            URI id = findOrCreateFedoraExternalResource(pid, avalon, true, true);
 
-        // Create the object
-        URI id = findOrCreateFedoraExternalResource(pid, avalon, true, true);
+            // Update the title
+            final String title = (String) rootDoc.getFirstValue("title_tesi");
+            f4Writer.updateLiteralProperty(id, RdfConstants.DC_TITLE, title);
+            applyRightsStatement(id, rights.getRightsStatementForAvalonResource(rootDoc));
 
-        // Update the title
-        final String title = (String) rootDoc.getFirstValue("title_tesi");
-        f4Writer.updateLiteralProperty(id, RdfConstants.DC_TITLE, title);
-        applyRightsStatement(id, rights.getRightsStatementForAvalonResource(rootDoc));
+            LOGGER.info(pid);
 
-        LOGGER.info(pid);
+            for (SolrDocument part : parts) {
+                final String partPid = (String) part.getFirstValue("id");
+                LOGGER.debug("PART: " + partPid);
 
-        Iterator<SolrDocument> partsIt = solr.getRecordsForQuery("is_part_of_ssim:\"info:fedora/" + pid + "\"");
-        while (partsIt.hasNext()) {
-            final SolrDocument part = partsIt.next();
-            final String partPid = (String) part.getFirstValue("id");
-            LOGGER.debug("PART: " + partPid);
+                final URI partId = findOrCreateFedoraExternalResource(partPid, avalon, true, true);
+                final URI masterFileId = createOrLocateFileResource(new FederatedFile(new File(getDatastreamContent(partPid, "masterFile")), fm), true, true);
+                f4Writer.updateURIProperty(partId, RdfConstants.HAS_FILE, masterFileId);
+                f4Writer.updateLiteralProperty(partId, RdfConstants.DC_TITLE, title + " - Master File " + partPid);
+                f4Writer.updateURIProperty(id, RdfConstants.PCDM_HAS_MEMBER, partId);
+                applyRightsStatement(partId, rights.getRightsStatementForAvalonResource(part));
+                applyRightsStatement(masterFileId, rights.getRightsStatementForAvalonResource(part));
 
-            final URI partId = findOrCreateFedoraExternalResource(partPid, avalon, true, true);
-            final URI masterFileId = createOrLocateFileResource(new FederatedFile(new File(getDatastreamContent(partPid, "masterFile")), fm), true, true);
-            f4Writer.updateURIProperty(partId, RdfConstants.HAS_FILE, masterFileId);
-            f4Writer.updateLiteralProperty(partId, RdfConstants.DC_TITLE, title + " - Master File " + partPid);
-            f4Writer.updateURIProperty(id, RdfConstants.PCDM_HAS_MEMBER, partId);
-            applyRightsStatement(partId, rights.getRightsStatementForAvalonResource(part));
-            applyRightsStatement(masterFileId, rights.getRightsStatementForAvalonResource(part));
+                for (SolrDocument derivative : partDerivatives.get(partPid)) {
+                    final String derivativePid = (String) derivative.getFirstValue("id");
+                    LOGGER.debug("DERIVATIVE: " + derivativePid);
 
-            Iterator<SolrDocument> derivativesIt = solr.getRecordsForQuery("is_derivation_of_ssim:\"info:fedora/" +  partPid + "\"");
+                    final URI derivativeId = findOrCreateFedoraExternalResource(derivativePid, avalon, true, true);
+                    final URI derivativeFileId = createOrLocateFileResource(new FederatedFile(new File(getDatastreamContent(derivativePid, "derivativeFile")), fm), false, true);
+                    f4Writer.updateURIProperty(derivativeId, RdfConstants.HAS_FILE, derivativeFileId);
+                    f4Writer.updateLiteralProperty(derivativeId, RdfConstants.DC_TITLE, title + " - Derivative File " + derivativePid);
+                    f4Writer.updateURIProperty(derivativeFileId, RdfConstants.IS_DERIVED_FROM, masterFileId);
+                    f4Writer.updateURIProperty(partId, RdfConstants.PCDM_HAS_MEMBER, derivativeId);
+                    applyRightsStatement(derivativeId, rights.getRightsStatementForAvalonResource(derivative));
+                    applyRightsStatement(derivativeFileId, rights.getRightsStatementForAvalonResource(part));
+                }
+            }
+        } finally {
+            // nothing else will ask for this object's datastreams
+            for (SolrDocument part : parts) {
+                final String partPid = (String) part.getFirstValue("id");
+                forgetDatastreamContent(partPid, "masterFile");
+                for (SolrDocument derivative : partDerivatives.get(partPid)) {
+                    forgetDatastreamContent((String) derivative.getFirstValue("id"), "derivativeFile");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the threads that fetch datastream content.  This should be called once no
+     * more objects are to be synchronized.
+     */
+    public void close() {
+        datastreamFetcher.shutdownNow();
+        datastreamCache.clear();
+    }
+
+    /**
+     * Gets the derivatives of all of the given parts with a single query (or one per
+     * DERIVATIVE_QUERY_BATCH_SIZE parts) and groups them by the pid of the part from
+     * which they were derived.  Every part has an entry, in the order given, even if it
+     * has no derivatives.
+     */
+    private Map<String, List<SolrDocument>> getDerivativesByPart(final List<SolrDocument> parts) throws SolrServerException {
+        final Map<String, List<SolrDocument>> partDerivatives = new LinkedHashMap<String, List<SolrDocument>>();
+        for (SolrDocument part : parts) {
+            partDerivatives.put((String) part.getFirstValue("id"), new ArrayList<SolrDocument>());
+        }
+        final List<String> partPids = new ArrayList<String>(partDerivatives.keySet());
+        for (int i = 0; i < partPids.size(); i += DERIVATIVE_QUERY_BATCH_SIZE) {
+            final StringBuilder query = new StringBuilder();
+            for (String partPid : partPids.subList(i, Math.min(partPids.size(), i + DERIVATIVE_QUERY_BATCH_SIZE))) {
+                query.append(query.length() == 0 ? "" : " OR ").append("is_derivation_of_ssim:\"info:fedora/" + partPid + "\"");
+            }
+            Iterator<SolrDocument> derivativesIt = solr.getRecordsForQuery(query.toString(), SOLR_FIELDS);
             while (derivativesIt.hasNext()) {
                 final SolrDocument derivative = derivativesIt.next();
-                final String derivativePid = (String) derivative.getFirstValue("id");
-                LOGGER.debug("DERIVATIVE: " + derivativePid);
-
-                final URI derivativeId = findOrCreateFedoraExternalResource(derivativePid, avalon, true, true);
-                final URI derivativeFileId = createOrLocateFileResource(new FederatedFile(new File(getDatastreamContent(derivativePid, "derivativeFile")), fm), false, true);
-                f4Writer.updateURIProperty(derivativeId, RdfConstants.HAS_FILE, derivativeFileId);
-                f4Writer.updateLiteralProperty(derivativeId, RdfConstants.DC_TITLE, title + " - Derivative File " + derivativePid);
-                f4Writer.updateURIProperty(derivativeFileId, RdfConstants.IS_DERIVED_FROM, masterFileId);
-                f4Writer.updateURIProperty(partId, RdfConstants.PCDM_HAS_MEMBER, derivativeId);
-                applyRightsStatement(derivativeId, rights.getRightsStatementForAvalonResource(derivative));
-                applyRightsStatement(derivativeFileId, rights.getRightsStatementForAvalonResource(part));
-             }
+                for (Object source : derivative.getFieldValues("is_derivation_of_ssim")) {
+                    final List<SolrDocument> derivatives = partDerivatives.get(String.valueOf(source).replace("info:fedora/", ""));
+                    if (derivatives != null) {
+                        derivatives.add(derivative);
+                    }
+                }
+            }
         }
+        return partDerivatives;
     }
 
     /**
@@ -143,10 +258,60 @@ public class AvalonIngest extends AbstractIngest {
         f4Writer.addURIProperty(resourceId, RdfConstants.RIGHTS, rsURI);
     }
 
-    private String getDatastreamContent(final String fedora3Pid, final String dsId) throws FedoraClientException, IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        IOUtils.copy(FedoraClient.getDatastreamDissemination(fedora3Pid, dsId).execute(f3Client).getEntityInputStream(), baos);
-        return new String(baos.toByteArray(), "UTF-8");
+    /**
+     * Starts fetching the content of the given datastream in the background, unless it
+     * has already been requested during this run.
+     */
+    private Future<String> prefetchDatastreamContent(final String fedora3Pid, final String dsId) {
+        final String key = fedora3Pid + "/" + dsId;
+        Future<String> content = datastreamCache.get(key);
+        if (content == null) {
+            final FutureTask<String> fetch = new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws FedoraClientException, IOException {
+                    final InputStream is = FedoraClient.getDatastreamDissemination(fedora3Pid, dsId).execute(f3Client).getEntityInputStream();
+                    try {
+                        return IOUtils.toString(is, "UTF-8");
+                    } finally {
+                        is.close();
+                    }
+                }
+            });
+            content = datastreamCache.putIfAbsent(key, fetch);
+            if (content == null) {
+                content = fetch;
+                datastreamFetcher.execute(fetch);
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Removes the given datastream from the cache, abandoning its fetch if it's still
+     * pending.
+     */
+    private void forgetDatastreamContent(String fedora3Pid, String dsId) {
+        final Future<String> content = datastreamCache.remove(fedora3Pid + "/" + dsId);
+        if (content != null) {
+            content.cancel(true);
+        }
+    }
+
+    private String getDatastreamContent(final String fedora3Pid, final String dsId) throws FedoraClientException, IOException, InterruptedException {
+        final Future<String> content = prefetchDatastreamContent(fedora3Pid, dsId);
+        try {
+            return content.get();
+        } catch (ExecutionException e) {
+            // don't cache failures, so that a later sync may try again
+            datastreamCache.remove(fedora3Pid + "/" + dsId, content);
+            if (e.getCause() instanceof FedoraClientException) {
+                throw (FedoraClientException) e.getCause();
+            } else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
+            }
+        }
     }
 
 }
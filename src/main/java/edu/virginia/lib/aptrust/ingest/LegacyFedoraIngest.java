@@ -4,18 +4,35 @@ import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getOptionalProper
 import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getRequiredProperty;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Iterator;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.common.SolrDocument;
 import org.fcrepo.client.FcrepoOperationFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import edu.virginia.lib.aptrust.RdfConstants;
 import edu.virginia.lib.aptrust.helper.Fedora4Client;
@@ -30,6 +47,8 @@ import edu.virginia.lib.aptrust.helper.SolrReader;
  */
 public class LegacyFedoraIngest extends AbstractIngest {
 
+    final private static Logger LOGGER = LoggerFactory.getLogger(LegacyFedoraIngest.class);
+
     public static void main(String [] args) throws Exception {
         Properties p = new Properties();
         FileInputStream fis = new FileInputStream("fedora-prod01-ingest.properties");
@@ -40,13 +59,32 @@ public class LegacyFedoraIngest extends AbstractIngest {
             fis.close();
         }
         
-        FusekiReader fuseki = new FusekiReader(getRequiredProperty(p, "triplestore-url"));
+        FusekiReader fuseki = new FusekiReader(getRequiredProperty(p, "triplestore-url"),
+                FusekiReader.getSlowQueryThreshold(getOptionalProperty(p, "triplestore-slow-query-ms")));
         Fedora4Client f4Client = new Fedora4Client(getOptionalProperty(p, "f4-username"), getOptionalProperty(p, "f4-password"), getRequiredProperty(p, "f4-url"));
 
+        final String threads = getOptionalProperty(p, "ingest-threads");
+        final String checkpoint = getOptionalProperty(p, "ingest-checkpoint-file");
         LegacyFedoraIngest i = new LegacyFedoraIngest(f4Client, fuseki, new SolrReader(getRequiredProperty(p, "solr-url"), true));
-        i.ingestAllPids();
+        i.ingestAllPids(threads == null || threads.trim().length() == 0 ? 4 : Integer.parseInt(threads.trim()),
+                checkpoint == null || checkpoint.trim().length() == 0 ? null : new File(checkpoint.trim()));
     }
     
+    /**
+     * The number of CSV lines whose pids are looked up in Virgo with a single query.
+     */
+    private static final int VIRGO_LOOKUP_CHUNK_SIZE = 500;
+
+    /**
+     * The number of parsed lines that may wait for a worker, per worker.
+     */
+    private static final int QUEUED_LINES_PER_WORKER = 100;
+
+    /**
+     * Placed on the queue (once per worker) after the last line.
+     */
+    private static final Line END = new Line(-1, null, null, null);
+
     private SolrReader solr;
     
     public LegacyFedoraIngest(Fedora4Client f4Writer, FusekiReader triplestore, SolrReader s) {
@@ -55,8 +93,17 @@ public class LegacyFedoraIngest extends AbstractIngest {
         
     }
 
-
     public void ingestAllPids() throws FcrepoOperationFailedException, URISyntaxException, IOException, SolrServerException, InterruptedException {
+        ingestAllPids(1, null);
+    }
+
+    /**
+     * Registers every pid listed in the CSV file, using the given number of concurrent
+     * workers.  If a checkpoint file is given, the number of lines of the CSV file that
+     * have been completely processed is recorded there, and a subsequent run with the
+     * same checkpoint file resumes from that point.
+     */
+    public void ingestAllPids(final int threads, final File checkpointFile) throws FcrepoOperationFailedException, URISyntaxException, IOException, SolrServerException, InterruptedException {
         final URI collectionUri = new URI(f4Writer.getBaseUri().toString() + "/" + containerResource());
         if (!f4Writer.exists(collectionUri)) {
             // create collection resource
@@ -70,44 +117,139 @@ public class LegacyFedoraIngest extends AbstractIngest {
             f4Writer.addLiteralProperty(collectionUri, RdfConstants.DCTERMS_DESCRIPTION, "Fedora 3.2.1 - legacy content production repository");
         }
         
-        BufferedReader r = new BufferedReader(new InputStreamReader(getClass().getClassLoader().getResourceAsStream("fedora-prod01.csv")));
-        try {
-            String line = null;
-            while ((line = r.readLine()) != null) {
-                final int firstComma = line.indexOf(',');
-                if (firstComma < 0) {
-                    System.err.println("Unparsible line: " + line);
-                    System.exit(-1);
+        final LineCheckpoint checkpoint = new LineCheckpoint(checkpointFile);
+        final long resumeAfter = checkpoint.getCommittedLines();
+        if (resumeAfter > 0) {
+            LOGGER.info("Resuming after line " + resumeAfter + " of the CSV file.");
+        }
+
+        // a reader thread (this one) parses lines and looks them up in Virgo, workers create the resources
+        final BlockingQueue<Line> queue = new ArrayBlockingQueue<Line>(threads * QUEUED_LINES_PER_WORKER);
+        final ExecutorService workers = Executors.newFixedThreadPool(threads);
+        final List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int i = 0; i < threads; i ++) {
+            results.add(workers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Line line = null;
+                    while ((line = queue.take()) != END) {
+                        ingestLine(line, collectionUri);
+                        checkpoint.markComplete(line.number);
+                    }
+                    return null;
                 }
-                if (line.startsWith("info:fedora/uva-lib:")) {
-                    final String pid = line.substring(12,firstComma);
-                    final String title = line.substring(firstComma + 1);
-                    final String virgoUrl = getVirgoUrl(pid);
-                    final URI uri = createOrLocateTypedResource(collectionUri.toString(), pid, new URI(RdfConstants.EXTERNAL_RESOURCE_TYPE), false, false, new ResourceInitializer() {
-
-                        @Override
-                        public void initializeResource(URI uri) throws UnsupportedEncodingException, URISyntaxException, FcrepoOperationFailedException {
-                            f4Writer.addURIProperty(uri, RdfConstants.EXTERNAL_SYSTEM, collectionUri);
-                            if (title != null) {
-                                f4Writer.addLiteralProperty(uri,  RdfConstants.DC_TITLE, title);
-                            }
-                            if (virgoUrl != null) {
-                                f4Writer.addLiteralProperty(uri, RdfConstants.PRES_HAS_VIRGO_VIEW, virgoUrl);
-                            }
-                            
-                        }});
-                    
-                    if (title.equals("null")) {
-                        System.out.println(pid + "  \"" + (virgoUrl != null ? virgoUrl : ""));
-                    } else {
-                        System.out.println(pid + " - \"" + title + "\" " + (virgoUrl != null ? virgoUrl : ""));
+            }));
+        }
+        try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(getClass().getClassLoader().getResourceAsStream("fedora-prod01.csv")));
+            try {
+                final List<String> chunk = new ArrayList<String>();
+                long lineNumber = 0;
+                String line = null;
+                while ((line = r.readLine()) != null) {
+                    lineNumber ++;
+                    if (lineNumber <= resumeAfter) {
+                        continue;
+                    }
+                    chunk.add(line);
+                    if (chunk.size() == VIRGO_LOOKUP_CHUNK_SIZE) {
+                        enqueueLines(chunk, lineNumber - chunk.size() + 1, queue, checkpoint, results);
+                        chunk.clear();
                     }
-                } else {
-                    System.err.println("Skipping " + line);
                 }
+                enqueueLines(chunk, lineNumber - chunk.size() + 1, queue, checkpoint, results);
+            } finally {
+                r.close();
+            }
+            for (int i = 0; i < threads; i ++) {
+                put(END, queue, results);
+            }
+            for (Future<Void> result : results) {
+                awaitWorker(result);
             }
         } finally {
-            r.close();
+            workers.shutdownNow();
+            checkpoint.close();
+        }
+    }
+
+    /**
+     * Parses the given consecutive lines from the CSV file (the first of which has the
+     * given line number), determines which of their pids are in Virgo with a single
+     * solr query and queues them for the workers.  Lines that can't be parsed or
+     * don't represent uva-lib pids are logged and skipped.
+     */
+    private void enqueueLines(final List<String> lines, final long firstLineNumber, final BlockingQueue<Line> queue, final LineCheckpoint checkpoint, final List<Future<Void>> workers) throws SolrServerException, InterruptedException, IOException {
+        final List<String> pids = new ArrayList<String>();
+        for (String line : lines) {
+            final int firstComma = line.indexOf(',');
+            if (firstComma >= 0 && line.startsWith("info:fedora/uva-lib:")) {
+                pids.add(line.substring(12, firstComma));
+            }
+        }
+        final Set<String> inVirgo = solr.getExistingIds(pids);
+
+        long lineNumber = firstLineNumber;
+        for (String line : lines) {
+            final int firstComma = line.indexOf(',');
+            if (firstComma < 0) {
+                LOGGER.error("Unparsible line " + lineNumber + ": " + line);
+                checkpoint.markComplete(lineNumber);
+            } else if (line.startsWith("info:fedora/uva-lib:")) {
+                final String pid = line.substring(12,firstComma);
+                put(new Line(lineNumber, pid, line.substring(firstComma + 1), inVirgo.contains(pid) ? getVirgoUrl(pid) : null), queue, workers);
+            } else {
+                System.err.println("Skipping " + line);
+                checkpoint.markComplete(lineNumber);
+            }
+            lineNumber ++;
+        }
+    }
+
+    /**
+     * Puts the given line on the queue, waiting as long as necessary for room unless
+     * a worker fails, in which case that failure is thrown.
+     */
+    private static void put(final Line line, final BlockingQueue<Line> queue, final List<Future<Void>> workers) throws InterruptedException {
+        while (!queue.offer(line, 1, TimeUnit.SECONDS)) {
+            for (Future<Void> worker : workers) {
+                if (worker.isDone()) {
+                    awaitWorker(worker);
+                }
+            }
+        }
+    }
+
+    private static void awaitWorker(final Future<Void> worker) throws InterruptedException {
+        try {
+            worker.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Ingest failed!", e.getCause());
+        }
+    }
+
+    private void ingestLine(final Line line, final URI collectionUri) throws URISyntaxException, IOException, FcrepoOperationFailedException, InterruptedException {
+        final String pid = line.pid;
+        final String title = line.title;
+        final String virgoUrl = line.virgoUrl;
+        final URI uri = createOrLocateTypedResource(collectionUri.toString(), pid, new URI(RdfConstants.EXTERNAL_RESOURCE_TYPE), false, false, new ResourceInitializer() {
+
+            @Override
+            public void initializeResource(URI uri) throws UnsupportedEncodingException, URISyntaxException, FcrepoOperationFailedException {
+                f4Writer.addURIProperty(uri, RdfConstants.EXTERNAL_SYSTEM, collectionUri);
+                if (title != null) {
+                    f4Writer.addLiteralProperty(uri,  RdfConstants.DC_TITLE, title);
+                }
+                if (virgoUrl != null) {
+                    f4Writer.addLiteralProperty(uri, RdfConstants.PRES_HAS_VIRGO_VIEW, virgoUrl);
+                }
+                
+            }});
+        
+        if (title.equals("null")) {
+            System.out.println(pid + "  \"" + (virgoUrl != null ? virgoUrl : ""));
+        } else {
+            System.out.println(pid + " - \"" + title + "\" " + (virgoUrl != null ? virgoUrl : ""));
         }
     }
     
@@ -116,12 +258,84 @@ public class LegacyFedoraIngest extends AbstractIngest {
         return "fedora-prod01";
     }
     
-    private String getVirgoUrl(final String pid) throws SolrServerException {
-        Iterator<SolrDocument> solrIt = solr.getRecordsForQuery("id:\"" + pid + "\"");
-        if (solrIt.hasNext()) {
-            return "http://search.lib.virginia.edu/catalog/" + pid;
-        } 
-        return null;
+    private String getVirgoUrl(final String pid) {
+        return "http://search.lib.virginia.edu/catalog/" + pid;
     }
-    
+
+    /**
+     * A parsed line of the CSV file.
+     */
+    private static class Line {
+        private long number;
+        private String pid;
+        private String title;
+        private String virgoUrl;
+
+        public Line(long number, String pid, String title, String virgoUrl) {
+            this.number = number;
+            this.pid = pid;
+            this.title = title;
+            this.virgoUrl = virgoUrl;
+        }
+    }
+
+    /**
+     * Tracks which lines have been completed (in any order) and records, in a file if
+     * one is given, the number of leading lines that have all been completed.
+     */
+    private static class LineCheckpoint {
+
+        /**
+         * The number of newly committed lines after which the file is rewritten.
+         */
+        private static final int WRITE_INTERVAL = 100;
+
+        private File file;
+
+        private long committed;
+
+        private long written;
+
+        private TreeSet<Long> completedAhead = new TreeSet<Long>();
+
+        public LineCheckpoint(File file) throws IOException {
+            this.file = file;
+            if (file != null && file.exists()) {
+                committed = Long.parseLong(new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8")).trim());
+                written = committed;
+            }
+        }
+
+        public synchronized long getCommittedLines() {
+            return committed;
+        }
+
+        public synchronized void markComplete(long lineNumber) throws IOException {
+            completedAhead.add(lineNumber);
+            while (!completedAhead.isEmpty() && completedAhead.first() == committed + 1) {
+                completedAhead.pollFirst();
+                committed ++;
+            }
+            if (committed - written >= WRITE_INTERVAL) {
+                write();
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            if (committed != written) {
+                write();
+            }
+        }
+
+        private void write() throws IOException {
+            if (file == null) {
+                return;
+            }
+            final File temp = new File(file.getPath() + ".tmp");
+            Files.write(temp.toPath(), Collections.singletonList(String.valueOf(committed)), Charset.forName("UTF-8"));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written = committed;
+        }
+    }
+
 }
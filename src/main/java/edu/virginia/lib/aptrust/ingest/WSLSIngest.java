@@ -1,6 +1,8 @@
 package edu.virginia.lib.aptrust.ingest;
 
+import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getOptionalProperty;
 import static edu.virginia.lib.aptrust.helper.PropertiesHelper.getRequiredProperty;
+import static edu.virginia.lib.aptrust.helper.XlsRowReader.getCell;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -8,20 +10,30 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.poi.hssf.usermodel.HSSFSheet;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.Row;
 import org.fcrepo.client.FcrepoOperationFailedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,12 +45,16 @@ import com.yourmediashelf.fedora.client.FedoraClientException;
 import com.yourmediashelf.fedora.client.FedoraCredentials;
 
 import edu.virginia.lib.aptrust.RdfConstants;
+import edu.virginia.lib.aptrust.helper.CheckpointFile;
+import edu.virginia.lib.aptrust.helper.DirectoryFederationMapper;
 import edu.virginia.lib.aptrust.helper.ExternalSystem;
 import edu.virginia.lib.aptrust.helper.FederatedFile;
 import edu.virginia.lib.aptrust.helper.Fedora4Client;
 import edu.virginia.lib.aptrust.helper.FusekiReader;
 import edu.virginia.lib.aptrust.helper.ResourceIndexHelper;
 import edu.virginia.lib.aptrust.helper.RightsStatement;
+import edu.virginia.lib.aptrust.helper.ScratchSpace;
+import edu.virginia.lib.aptrust.helper.XlsRowReader;
 
 /**
  * Created by md5wz on 9/14/15.
@@ -57,6 +73,16 @@ public class WSLSIngest extends AbstractIngest {
     private String spreadsheetFilename;
 
     private String preservationMountPath;
+
+    private String federationUri;
+
+    /**
+     * Maps between federated URIs and files in the mounted preservation directory, so
+     * that both discovery modes identify each file by the same URI.
+     */
+    private DirectoryFederationMapper federationMapper;
+
+    private boolean scanMountedFiles;
     
     private File termsOfUsePDF;
     
@@ -64,6 +90,10 @@ public class WSLSIngest extends AbstractIngest {
     
     private PrintWriter p;
 
+    private int crawlThreads;
+
+    private File crawlCheckpointFile;
+
     public WSLSIngest(Fedora4Client f4Writer, FusekiReader triplestore, PrintWriter report) throws FcrepoOperationFailedException, URISyntaxException, IOException {
         super(f4Writer, triplestore);
         
@@ -83,6 +113,28 @@ public class WSLSIngest extends AbstractIngest {
             if (!deedOfGift.exists()) {
                 throw new RuntimeException("Deed of gift PDF for WSLS, " + deedOfGift.getAbsolutePath() + ", doesn't exist!");
             }
+            ScratchSpace.configureDefault(config, null);
+            final String threads = getOptionalProperty(config, "wsls-crawl-threads");
+            crawlThreads = threads == null || threads.trim().length() == 0 ? 4 : Integer.parseInt(threads.trim());
+            final String checkpoint = getOptionalProperty(config, "wsls-crawl-checkpoint-file");
+            crawlCheckpointFile = checkpoint == null || checkpoint.trim().length() == 0 ? null : new File(checkpoint.trim());
+            final String federation = getOptionalProperty(config, "wsls-federation-uri");
+            federationUri = federation == null || federation.trim().length() == 0 ? f4Writer.getBaseUri().toString() + "/av-masters" : federation.trim();
+            federationMapper = new DirectoryFederationMapper(federationUri, new File(preservationMountPath));
+            scanMountedFiles = "filesystem".equals(getOptionalProperty(config, "wsls-discovery-mode"));
+            final String mediaInfoThreads = getOptionalProperty(config, "wsls-mediainfo-threads");
+            final String mediaInfoTimeout = getOptionalProperty(config, "wsls-mediainfo-timeout-minutes");
+            enableConcurrentTechnicalMetadataExtraction(
+                    mediaInfoThreads == null || mediaInfoThreads.trim().length() == 0 ? 2 : Integer.parseInt(mediaInfoThreads.trim()),
+                    mediaInfoTimeout == null || mediaInfoTimeout.trim().length() == 0 ? 60 : Long.parseLong(mediaInfoTimeout.trim()),
+                    TimeUnit.MINUTES);
+            final String mediaInfoCache = getOptionalProperty(config, "wsls-mediainfo-cache-dir");
+            if (mediaInfoCache != null && mediaInfoCache.trim().length() > 0) {
+                final String cacheSize = getOptionalProperty(config, "wsls-mediainfo-cache-max-mb");
+                enableTechnicalMetadataCache(new File(mediaInfoCache.trim()),
+                        (cacheSize == null || cacheSize.trim().length() == 0 ? 1024 : Long.parseLong(cacheSize.trim())) * 1024 * 1024,
+                        "true".equals(getOptionalProperty(config, "wsls-mediainfo-cache-partial-hash")));
+            }
         } finally {
             fis.close();
         }
@@ -98,28 +150,243 @@ public class WSLSIngest extends AbstractIngest {
 		return "wsls";
 	}
 
+    /**
+     * Creates pres:File resources for all the WSLS master files, discovering them either by
+     * walking the federation (the default) or, when "wsls-discovery-mode" is "filesystem", by
+     * scanning the locally mounted preservation directory.
+     */
+    public void createPreservationPackagesForAllFiles() throws FcrepoOperationFailedException, IOException, URISyntaxException, InterruptedException {
+        try {
+            if (scanMountedFiles) {
+                createPreservationPackagesForMountedFiles();
+            } else {
+                createPreservationPackagesForFiles(federationUri);
+            }
+        } finally {
+            // both crawls wait for the technical metadata before returning
+            shutdownTechnicalMetadataExtraction();
+        }
+    }
+
+    /**
+     * Does the same work as createPreservationPackagesForFiles(), but discovers the files by
+     * walking the "wsls-preservation-mount-path" directly rather than asking fedora to list
+     * each federated directory.  Top-level directories are walked concurrently by a pool of
+     * "wsls-crawl-threads" threads, and each discovered file is mapped to its federated URI and
+     * handed to a separate pool of "wsls-crawl-threads" workers.  Report lines and checkpoints are written per top-level
+     * directory, in sorted order, exactly as they are for the federation crawl.
+     */
+    public void createPreservationPackagesForMountedFiles() throws IOException, InterruptedException {
+        final DirectoryFederationMapper fm = federationMapper;
+        final File[] topLevelFiles = fm.getMountPath().listFiles();
+        if (topLevelFiles == null) {
+            throw new RuntimeException("Unable to list the contents of " + fm.getMountPath() + "!");
+        }
+        final List<File> subtrees = new ArrayList<File>();
+        Collections.addAll(subtrees, topLevelFiles);
+        Collections.sort(subtrees);
+
+        final CheckpointFile checkpoint = crawlCheckpointFile == null ? null : new CheckpointFile(crawlCheckpointFile);
+        final ExecutorService discoveryPool = Executors.newFixedThreadPool(crawlThreads);
+        final ExecutorService workerPool = Executors.newFixedThreadPool(crawlThreads);
+        try {
+            final List<Future<List<Future<String>>>> discovered = new ArrayList<Future<List<Future<String>>>>();
+            for (final File subtree : subtrees) {
+                if (checkpoint != null && checkpoint.isComplete(fm.getFederatedURIForFile(subtree))) {
+                    LOGGER.info("Skipping " + subtree + " which was completed in a previous crawl.");
+                    discovered.add(null);
+                } else {
+                    discovered.add(discoveryPool.submit(new Callable<List<Future<String>>>() {
+                        @Override
+                        public List<Future<String>> call() throws IOException {
+                            return submitMountedFiles(subtree, fm, workerPool);
+                        }
+                    }));
+                }
+            }
+            for (int i = 0; i < subtrees.size(); i ++) {
+                if (discovered.get(i) != null) {
+                    final List<String> lines = new ArrayList<String>();
+                    for (Future<String> line : discovered.get(i).get()) {
+                        lines.add(line.get());
+                    }
+                    writeReportLines(lines);
+                    if (checkpoint != null) {
+                        waitForTechnicalMetadata();
+                        checkpoint.markComplete(fm.getFederatedURIForFile(subtrees.get(i)));
+                    }
+                }
+            }
+            waitForTechnicalMetadata();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } finally {
+            discoveryPool.shutdownNow();
+            workerPool.shutdownNow();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+    }
+
+    /**
+     * Walks the given file or directory and submits every regular file within it to the
+     * worker pool, returning the pending report lines in order of federated URI (as the
+     * federation crawl does, rather than the arbitrary order the files are found).
+     */
+    private List<Future<String>> submitMountedFiles(final File subtree, final DirectoryFederationMapper fm, final ExecutorService workerPool) throws IOException {
+        final Map<String, File> files = new TreeMap<String, File>();
+        Files.walkFileTree(subtree.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    files.put(fm.getFederatedURIForFile(file.toFile()), file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        final List<Future<String>> lines = new ArrayList<Future<String>>();
+        for (File file : files.values()) {
+            final FederatedFile ff = new FederatedFile(file, fm);
+            lines.add(workerPool.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return processFederatedFile(ff);
+                }
+            }));
+        }
+        return lines;
+    }
+
     /**
      * This walks through all the files in the WSLS federation space and creates pres:File resources for them.
      * It also identifies those that are preservation master files and marks them as "pres:PreservationPackage"
      * resources.
+     *
+     * The container hierarchy is traversed by a pool of "wsls-crawl-threads" worker threads, so files in
+     * different subtrees are processed concurrently.  Report lines are nonetheless written in traversal order
+     * (by sorted URI) once each top-level subtree is complete.  If "wsls-crawl-checkpoint-file" is configured,
+     * each completed top-level subtree is recorded there and skipped when the crawl is restarted.
      */
     public void createPreservationPackagesForFiles(String uri) throws FcrepoOperationFailedException, IOException, URISyntaxException, InterruptedException {
-        Model m = f4Writer.getAllProperties(new URI(uri + "/fcr:metadata"));
-        if (Fedora4Client.hasType(m, uri.toString(), "http://fedora.info/definitions/v4/repository#Container")) {
-            for (RDFNode n : Fedora4Client.getPropertyValues(m, new URI(uri), RdfConstants.LDP_CONTAINS)) {
-                if (n.isResource()) {
-                    createPreservationPackagesForFiles(n.asResource().getURI());
+        final CheckpointFile checkpoint = crawlCheckpointFile == null ? null : new CheckpointFile(crawlCheckpointFile);
+        final ForkJoinPool pool = new ForkJoinPool(crawlThreads);
+        try {
+            Model m = f4Writer.getAllProperties(new URI(uri + "/fcr:metadata"));
+            if (!Fedora4Client.hasType(m, uri.toString(), "http://fedora.info/definitions/v4/repository#Container")) {
+                writeReportLines(pool.invoke(new CrawlTask(uri)));
+                waitForTechnicalMetadata();
+                return;
+            }
+            final List<String> subtreeUris = getContainedURIs(m, uri);
+            final List<ForkJoinTask<List<String>>> subtrees = new ArrayList<ForkJoinTask<List<String>>>();
+            for (String subtreeUri : subtreeUris) {
+                if (checkpoint != null && checkpoint.isComplete(subtreeUri)) {
+                    LOGGER.info("Skipping " + subtreeUri + " which was completed in a previous crawl.");
+                    subtrees.add(null);
                 } else {
-                    throw new RuntimeException("ldp:contained resources must be resources!");
+                    subtrees.add(pool.submit(new CrawlTask(subtreeUri)));
+                }
+            }
+            for (int i = 0; i < subtrees.size(); i ++) {
+                if (subtrees.get(i) != null) {
+                    writeReportLines(subtrees.get(i).join());
+                    if (checkpoint != null) {
+                        // don't record the subtree until its technical metadata is in place
+                        waitForTechnicalMetadata();
+                        checkpoint.markComplete(subtreeUris.get(i));
+                    }
                 }
             }
-        } else {
-            FederatedFile ff = new FederatedFile(new File(preservationMountPath + "/" + uri.substring(uri.indexOf("/av-masters/") + 12)), uri);
-            p.println(ff.getFile().getPath() + "," + ff.getURI() + "," +  isPreservationMasterFile(ff));
-            createOrLocateFileResource(ff, isPreservationMasterFile(ff), true);
+            waitForTechnicalMetadata();
+        } finally {
+            pool.shutdownNow();
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
         }
     }
 
+    private void writeReportLines(List<String> lines) {
+        for (String line : lines) {
+            p.println(line);
+        }
+        p.flush();
+    }
+
+    /**
+     * Gets the URIs of the resources contained by the given container, sorted so
+     * that the traversal order is stable from one run to the next.
+     */
+    private static List<String> getContainedURIs(Model m, String uri) throws URISyntaxException {
+        final List<String> uris = new ArrayList<String>();
+        for (RDFNode n : Fedora4Client.getPropertyValues(m, new URI(uri), RdfConstants.LDP_CONTAINS)) {
+            if (n.isResource()) {
+                uris.add(n.asResource().getURI());
+            } else {
+                throw new RuntimeException("ldp:contained resources must be resources!");
+            }
+        }
+        Collections.sort(uris);
+        return uris;
+    }
+
+    /**
+     * Processes a single federated resource: leaves are turned into pres:File resources
+     * and containers fork a task for each contained resource.  The result is the report
+     * lines for the subtree, in traversal order.
+     */
+    private class CrawlTask extends RecursiveTask<List<String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private String uri;
+
+        public CrawlTask(String uri) {
+            this.uri = uri;
+        }
+
+        @Override
+        protected List<String> compute() {
+            try {
+                Model m = f4Writer.getAllProperties(new URI(uri + "/fcr:metadata"));
+                if (Fedora4Client.hasType(m, uri.toString(), "http://fedora.info/definitions/v4/repository#Container")) {
+                    final List<CrawlTask> children = new ArrayList<CrawlTask>();
+                    for (String childUri : getContainedURIs(m, uri)) {
+                        children.add(new CrawlTask(childUri));
+                    }
+                    invokeAll(children);
+                    final List<String> lines = new ArrayList<String>();
+                    for (CrawlTask child : children) {
+                        lines.addAll(child.join());
+                    }
+                    return lines;
+                } else {
+                    // mapped back from the file so that the URI is encoded exactly as a filesystem crawl encodes it
+                    final File file = federationMapper.getFileForFederatedURI(uri);
+                    return Collections.singletonList(processFederatedFile(new FederatedFile(file, federationMapper)));
+                }
+            } catch (RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new RuntimeException("Error processing " + uri + "!", ex);
+            }
+        }
+    }
+
+    /**
+     * Finds or creates the pres:File resource for the given file and returns its report line.
+     */
+    private String processFederatedFile(FederatedFile ff) throws URISyntaxException, IOException, FcrepoOperationFailedException, InterruptedException {
+        createOrLocateFileResource(ff, isPreservationMasterFile(ff), true);
+        return ff.getFile().getPath() + "," + ff.getURI() + "," +  isPreservationMasterFile(ff);
+    }
+
     /**
      * Determine whether a FederatedFile is a preservation master file.  The current implementation
      * bases this determination on file naming conventions.
@@ -130,56 +397,61 @@ public class WSLSIngest extends AbstractIngest {
         return m.matches();
     }
 
+    /**
+     * Reads the WSLS master spreadsheet, creating or updating a resource for each processed
+     * clip and its anchor scripts.  The spreadsheet is streamed rather than loaded, and the
+     * pres:File resources for the .mov and .pdf files and the anchor script relationships in
+     * fedora 3 are looked up once, up front, so that each row requires no queries.
+     */
     public void ingestSpreadsheet() throws Exception {
-        URI wslsRightsStatementURI = new URI(findWSLSRightsStatementURI());
-        URI thirdPartyCopyrightStatementURI = new URI(findThirdPartyRightsStatementURI());
+        final URI wslsRightsStatementURI = new URI(findWSLSRightsStatementURI());
+        final URI thirdPartyCopyrightStatementURI = new URI(findThirdPartyRightsStatementURI());
 
-        ExternalSystem fedoraProd02SystemResource = findGenericFedoraExternalSystemURI(fedora3Url);
+        final ExternalSystem fedoraProd02SystemResource = findGenericFedoraExternalSystemURI(fedora3Url);
 
         findCollectionResource(spreadsheetFilename);
 
-        FileInputStream fis = new FileInputStream(spreadsheetFilename);
-        try {
-            HSSFWorkbook workbook = new HSSFWorkbook(fis);
-            HSSFSheet sheet = workbook.getSheetAt(0);
-            Iterator<Row> rowIt = sheet.iterator();
-            if (rowIt.hasNext()) {
-                rowIt.next();
-            } else {
-                LOGGER.warn("No rows in spreadsheet!");
-            }
-            while (rowIt.hasNext()) {
-                Row row = rowIt.next();
-                if (row.getRowNum() != 0) {
-                    final String virgoUrl = getText(row.getCell(40));
+        final Map<String, List<IndexedFile>> fileIndex = getFileIndex();
+
+        final ResourceIndexHelper resourceIndex = new ResourceIndexHelper(f3Client);
+        resourceIndex.prefetch(IS_ANCHOR_SCRIPT_FOR);
+
+        final int[] rowCount = new int[1];
+        XlsRowReader.readFirstSheet(new File(spreadsheetFilename), new XlsRowReader.RowHandler() {
+
+            @Override
+            public void handleRow(int rowNumber, List<String> row) throws Exception {
+                rowCount[0] ++;
+                if (rowNumber != 0) {
+                    final String virgoUrl = getCell(row, 40);
                     final String pid = virgoUrl != null ? virgoUrl.substring("http://search.lib.virginia.edu/catalog/".length()) : null;
-                    final String wslsID = getText(row.getCell(6));
-                    final boolean copyrighted = !"L".equals(getText(row.getCell(3)));
-                    final String title = getText(row.getCell(12));
-                    final List<String> pdfURIs = getPDFURIs(wslsID);
-                    final List<String> movieURIs = getMovieURIs(wslsID);
+                    final String wslsID = getCell(row, 6);
+                    final boolean copyrighted = !"L".equals(getCell(row, 3));
+                    final String title = getCell(row, 12);
+                    final List<String> pdfURIs = getPDFURIs(fileIndex, wslsID);
+                    final List<String> movieURIs = getMovieURIs(fileIndex, wslsID);
 
                     if (pid == null) {
-                    	// don't do anything... this is an unprocessed WSLS item.
+                        // don't do anything... this is an unprocessed WSLS item.
                     } else {
                         URI id = findOrCreateFedoraExternalResource(pid, fedoraProd02SystemResource, true, true);
-                        LOGGER.info("Spreadsheet row " + row.getRowNum() + ", " + wslsID + " --> " + id.toString());
+                        LOGGER.info("Spreadsheet row " + rowNumber + ", " + wslsID + " --> " + id.toString());
                         f4Writer.addURIProperty(id, RdfConstants.RIGHTS, wslsRightsStatementURI);
                         if (copyrighted) {
                             f4Writer.addURIProperty(id, RdfConstants.RIGHTS, thirdPartyCopyrightStatementURI);
                         }
 
                         for (String movieURI : movieURIs) {
-                        	f4Writer.updateURIProperty(id, RdfConstants.HAS_FILE, new URI(movieURI));
+                            f4Writer.updateURIProperty(id, RdfConstants.HAS_FILE, new URI(movieURI));
                         }
                         f4Writer.updateLiteralProperty(id, RdfConstants.DC_TITLE, title);
                         f4Writer.addLiteralProperty(id, RdfConstants.DC_IDENTIFIER, wslsID);
 
-                        for (String anchorScriptPid : ResourceIndexHelper.getSubjects(f3Client, IS_ANCHOR_SCRIPT_FOR, pid)) {
+                        for (String anchorScriptPid : resourceIndex.getSubjects(IS_ANCHOR_SCRIPT_FOR, pid)) {
                             final URI scriptId = findOrCreateFedoraExternalResource(anchorScriptPid, fedoraProd02SystemResource, true, true);
                             f4Writer.addLiteralProperty(scriptId, RdfConstants.DC_IDENTIFIER, wslsID);
                             for (String pdfURI : pdfURIs) {
-                            	f4Writer.updateURIProperty(scriptId, RdfConstants.HAS_FILE, new URI(pdfURI));
+                                f4Writer.updateURIProperty(scriptId, RdfConstants.HAS_FILE, new URI(pdfURI));
                             }
                             f4Writer.addURIProperty(scriptId, RdfConstants.RIGHTS, wslsRightsStatementURI);
                             if (copyrighted) {
@@ -191,76 +463,101 @@ public class WSLSIngest extends AbstractIngest {
                         }
                     }
                 }
-
             }
-        } finally {
-            fis.close();
+        });
+        if (rowCount[0] == 0) {
+            LOGGER.warn("No rows in spreadsheet!");
         }
     }
-    
-    private List<String> getMovieURIs(final String wslsID) throws IOException {
-    	final List<String> results = new ArrayList<String>();
-    	for (Map<String, String> movies : triplestore.getQueryResponse("PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "SELECT ?f\n" +
+
+    /**
+     * Fetches, with a single streamed query, every pres:File whose binary is a .mov or .pdf
+     * file and indexes them by that filename.
+     */
+    private Map<String, List<IndexedFile>> getFileIndex() throws IOException {
+        final Map<String, List<IndexedFile>> index = new HashMap<String, List<IndexedFile>>();
+        final Map<String, IndexedFile> files = new HashMap<String, IndexedFile>();
+        triplestore.processQueryResponse("PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
+                "SELECT ?f ?filename ?id\n" +
                 "WHERE {\n" +
                 "  ?f rdf:type <http://fedora.lib.virginia.edu/preservation#File> .\n" +
                 "  ?f <http://fedora.lib.virginia.edu/preservation#hasBinary> ?s .\n" +
-                "  ?s <http://www.ebu.ch/metadata/ontologies/ebucore/ebucore#filename> '" + wslsID + ".mov'\n" +
-                "}")) {
-    		results.add(movies.get("f"));
+                "  ?s <http://www.ebu.ch/metadata/ontologies/ebucore/ebucore#filename> ?filename .\n" +
+                "  OPTIONAL { ?f <" + RdfConstants.DC_IDENTIFIER + "> ?id }\n" +
+                "  FILTER(STRENDS(?filename, '.mov') || STRENDS(?filename, '.pdf'))\n" +
+                "}", new FusekiReader.ResultHandler() {
+
+                    @Override
+                    public void handleResult(Map<String, String> result) {
+                        final String key = result.get("filename") + " " + result.get("f");
+                        IndexedFile file = files.get(key);
+                        if (file == null) {
+                            file = new IndexedFile(result.get("f"));
+                            files.put(key, file);
+                            List<IndexedFile> named = index.get(result.get("filename"));
+                            if (named == null) {
+                                named = new ArrayList<IndexedFile>();
+                                index.put(result.get("filename"), named);
+                            }
+                            named.add(file);
+                        }
+                        if (result.get("id") != null && result.get("id").length() > 0) {
+                            file.identifiers.add(result.get("id"));
+                        }
+                    }
+                });
+        LOGGER.info("Indexed " + files.size() + " .mov and .pdf files.");
+        return index;
+    }
+
+    /**
+     * A pres:File resource (and its dc:identifiers) as found in the file index.
+     */
+    private static class IndexedFile {
+
+        private String uri;
+
+        private List<String> identifiers = new ArrayList<String>();
+
+        public IndexedFile(String uri) {
+            this.uri = uri;
+        }
+    }
+
+    private List<String> getMovieURIs(final Map<String, List<IndexedFile>> fileIndex, final String wslsID) {
+    	final List<String> results = new ArrayList<String>();
+    	final List<IndexedFile> movies = fileIndex.get(wslsID + ".mov");
+    	if (movies != null) {
+    	    for (IndexedFile movie : movies) {
+    	        results.add(movie.uri);
+    	    }
     	}
     	return results;
     }
     
-    private List<String> getPDFURIs(final String wslsID) throws IOException, FcrepoOperationFailedException, URISyntaxException {
+    private List<String> getPDFURIs(final Map<String, List<IndexedFile>> fileIndex, final String wslsID) {
     	List<String> pdfs = new ArrayList<String>();
-    	List<Map<String, String>> result = triplestore.getQueryResponse("PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n" +
-                "SELECT ?f\n" +
-                "WHERE {\n" +
-                "  ?f rdf:type <http://fedora.lib.virginia.edu/preservation#File> .\n" +
-                "  ?f <http://fedora.lib.virginia.edu/preservation#hasBinary> ?s .\n" +
-                "  ?s <http://www.ebu.ch/metadata/ontologies/ebucore/ebucore#filename> '" + wslsID + ".pdf'\n" +
-                "}");
-    	if (result.size() == 1) {
-    		pdfs.add(result.get(0).get("f"));
-    		return pdfs;
-    	} else if (result.size() == 0) {
+    	List<IndexedFile> result = fileIndex.get(wslsID + ".pdf");
+    	if (result == null) {
+    	    return pdfs;
+    	} else if (result.size() == 1) {
+    		pdfs.add(result.get(0).uri);
     		return pdfs;
     	} else {
-    		for (Map<String, String> r : result) {
-    			if (f4Writer.getSingleRequiredPropertyValue(new URI(r.get("f")), new URI(r.get("f")), RdfConstants.DC_IDENTIFIER).contains("corrected")) {
-    				LOGGER.info("Selected " + r.get("f") + " as the correct PDF to link.");
-    				return Collections.singletonList(r.get("f"));
-    			}
-    			pdfs.add(r.get("f"));
+    		for (IndexedFile r : result) {
+    		    for (String identifier : r.identifiers) {
+    		        if (identifier.contains("corrected")) {
+    		            LOGGER.info("Selected " + r.uri + " as the correct PDF to link.");
+    		            return Collections.singletonList(r.uri);
+    		        }
+    		    }
+    			pdfs.add(r.uri);
     		}
     		return pdfs;
     	}
 
     }
 
-    public String getText(Cell c) {
-        if (c == null) {
-            return null;
-        }
-        switch (c.getCellType()) {
-            case Cell.CELL_TYPE_STRING :
-                return c.getStringCellValue();
-            case Cell.CELL_TYPE_NUMERIC :
-                return new DataFormatter().formatCellValue(c);
-            case Cell.CELL_TYPE_BLANK :
-                return "";
-            case Cell.CELL_TYPE_BOOLEAN :
-                return String.valueOf(c.getBooleanCellValue());
-            case Cell.CELL_TYPE_ERROR :
-                return String.valueOf("ERROR: " + c.getErrorCellValue());
-            case Cell.CELL_TYPE_FORMULA :
-                return c.getCellFormula();
-            default:
-                throw new RuntimeException("Unknown cell type " + c.getCellType() + " (" + c.getRowIndex() + ", " + c.getColumnIndex() + ")");
-        }
-    }
-
     /**
      * Locates or creates a resource representing the WSLS collection master spreadsheet.
      */
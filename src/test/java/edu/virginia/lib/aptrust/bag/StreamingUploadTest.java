@@ -0,0 +1,335 @@
+package edu.virginia.lib.aptrust.bag;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+import edu.virginia.lib.aptrust.helper.S3MultipartOutputStream;
+import edu.virginia.lib.aptrust.helper.TarWriter;
+
+/**
+ * Streams a directory tree through TarWriter, S3MultipartOutputStream and
+ * BagTransfer.streamDirectory into an in-memory stand-in for S3, and checks that the
+ * stored object is a tar of the tree.  StreamingUploadCheck does the same against a
+ * real bucket.
+ */
+public class StreamingUploadTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int PART_BYTES = S3MultipartOutputStream.MIN_PART_BYTES;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("streaming-upload-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testStreamDirectory() throws IOException {
+        final File root = new File(dir, "bag");
+        writeTree(root);
+        final FakeS3Client s3 = new FakeS3Client(0);
+        final BagTransfer.Result result = new BagTransfer(s3, "bucket", true, PART_BYTES, 2).streamDirectory(root, "bag.tar");
+
+        final byte[] object = s3.getStoredObject("bag.tar");
+        assertTrue(result.wasTransferred());
+        assertEquals(3, s3.getPartCount("bag.tar"));
+        assertEquals(TarWriter.getArchiveSize(root), object.length);
+        assertEquals(object.length, result.getBagSize());
+        assertEquals(Base64.encodeBase64String(DigestUtils.md5(object)), result.getBase64Checksum());
+
+        final Map<String, byte[]> entries = readTar(object);
+        final Set<String> expected = new HashSet<String>();
+        addEntries(root, root.getName(), expected);
+        assertEquals(expected, entries.keySet());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            final File file = new File(dir, entry.getKey());
+            if (file.isDirectory()) {
+                assertEquals(0, entry.getValue().length);
+            } else {
+                assertArrayEquals(entry.getKey(), FileUtils.readFileToByteArray(file), entry.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testEmptyObject() throws IOException {
+        final FakeS3Client s3 = new FakeS3Client(0);
+        final S3MultipartOutputStream out = new S3MultipartOutputStream(s3, "bucket", "empty", PART_BYTES, 1, null);
+        out.close();
+        assertEquals(0, s3.getStoredObject("empty").length);
+        assertEquals(1, s3.getPartCount("empty"));
+        assertEquals(Base64.encodeBase64String(DigestUtils.md5(new byte[0])), out.getBase64Checksum());
+    }
+
+    @Test
+    public void testFailedPartAbortsUpload() throws IOException {
+        final File root = new File(dir, "bag");
+        writeTree(root);
+        final FakeS3Client s3 = new FakeS3Client(2);
+        try {
+            new BagTransfer(s3, "bucket", true, PART_BYTES, 2).streamDirectory(root, "bag.tar");
+            fail("The failed part should have failed the upload!");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertNull(s3.getStoredObject("bag.tar"));
+        assertEquals(1, s3.getAbortedCount());
+        assertFalse(s3.hasOpenUploads());
+    }
+
+    @Test
+    public void testPartBytes() {
+        final long limit = (long) PART_BYTES * S3MultipartOutputStream.MAX_PARTS;
+        assertEquals(PART_BYTES, S3MultipartOutputStream.getPartBytes(0, PART_BYTES));
+        assertEquals(PART_BYTES, S3MultipartOutputStream.getPartBytes(limit, PART_BYTES));
+        assertEquals(PART_BYTES + 1, S3MultipartOutputStream.getPartBytes(limit + 1, PART_BYTES));
+    }
+
+    /**
+     * Writes a small tree including a file that spans several parts (and isn't a
+     * multiple of the tar block size), an empty file and a path too long for a plain
+     * ustar name.
+     */
+    private static void writeTree(File root) throws IOException {
+        final File data = new File(root, "data");
+        data.mkdirs();
+        writeText(new File(root, "bagit.txt"), "BagIt-Version: 0.97\nTag-File-Character-Encoding: UTF-8\n");
+        new File(data, "empty.txt").createNewFile();
+        final StringBuilder longName = new StringBuilder();
+        while (longName.length() < 120) {
+            longName.append("nested-directory-name/");
+        }
+        final File nested = new File(data, longName + "file.txt");
+        nested.getParentFile().mkdirs();
+        writeText(nested, "nested\n");
+        final byte[] large = new byte[PART_BYTES * 2 + 12345];
+        new Random(0).nextBytes(large);
+        FileUtils.writeByteArrayToFile(new File(data, "large.bin"), large);
+    }
+
+    private static void writeText(File file, String text) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void addEntries(File f, String name, Set<String> entries) {
+        if (f.isDirectory()) {
+            entries.add(name + "/");
+            for (File child : f.listFiles()) {
+                addEntries(child, name + "/" + child.getName(), entries);
+            }
+        } else {
+            entries.add(name);
+        }
+    }
+
+    /**
+     * Parses a ustar archive, checking each header's checksum and the end of archive
+     * marker, and returns the content of each entry by name.
+     */
+    private static Map<String, byte[]> readTar(byte[] tar) {
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        int offset = 0;
+        while (!isZero(tar, offset, 512)) {
+            assertEquals("ustar\u000000", new String(tar, offset + 257, 8, UTF8));
+            final byte[] header = Arrays.copyOfRange(tar, offset, offset + 512);
+            final long recorded = octal(header, 148, 8);
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            long checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            assertEquals(recorded, checksum);
+
+            final String prefix = string(header, 345, 155);
+            final String name = prefix.length() == 0 ? string(header, 0, 100) : prefix + "/" + string(header, 0, 100);
+            final int size = (int) octal(header, 124, 12);
+            assertEquals(name.endsWith("/") ? '5' : '0', (char) header[156]);
+            entries.put(name, Arrays.copyOfRange(tar, offset + 512, offset + 512 + size));
+            offset += 512 + (size + 511) / 512 * 512;
+        }
+        assertEquals(tar.length, offset + 1024);
+        assertTrue(isZero(tar, offset, 1024));
+        return entries;
+    }
+
+    private static boolean isZero(byte[] b, int offset, int length) {
+        for (int i = offset; i < offset + length; i ++) {
+            if (b[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String string(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end ++;
+        }
+        return new String(header, offset, end - offset, UTF8);
+    }
+
+    private static long octal(byte[] header, int offset, int length) {
+        return Long.parseLong(string(header, offset, length).trim(), 8);
+    }
+
+    /**
+     * An S3 client that keeps multipart uploads and the objects they complete in
+     * memory, verifying each part's length and MD5 as S3 would.
+     */
+    private static class FakeS3Client extends AmazonS3Client {
+
+        private int failingPart;
+
+        private Map<String, SortedMap<Integer, byte[]>> uploads = new HashMap<String, SortedMap<Integer, byte[]>>();
+
+        private Map<String, byte[]> objects = new HashMap<String, byte[]>();
+
+        private Map<String, Integer> partCounts = new HashMap<String, Integer>();
+
+        private List<String> aborted = Collections.synchronizedList(new ArrayList<String>());
+
+        /**
+         * @param failingPart the number of a part whose upload should fail, or 0
+         */
+        public FakeS3Client(int failingPart) {
+            super(new BasicAWSCredentials("access", "secret"));
+            this.failingPart = failingPart;
+        }
+
+        @Override
+        public synchronized InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+            final InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId(UUID.randomUUID().toString());
+            uploads.put(result.getUploadId(), new TreeMap<Integer, byte[]>());
+            return result;
+        }
+
+        @Override
+        public UploadPartResult uploadPart(UploadPartRequest request) {
+            if (request.getPartNumber() == failingPart) {
+                throw new RuntimeException("Simulated failure of part " + failingPart + "!");
+            }
+            final ByteArrayOutputStream part = new ByteArrayOutputStream();
+            try {
+                final InputStream in = request.getInputStream();
+                IOUtils.copy(in, part);
+                in.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            final byte[] content = part.toByteArray();
+            assertEquals(request.getPartSize(), content.length);
+            assertEquals(Base64.encodeBase64String(DigestUtils.md5(content)), request.getMd5Digest());
+            synchronized (this) {
+                uploads.get(request.getUploadId()).put(request.getPartNumber(), content);
+            }
+            final UploadPartResult result = new UploadPartResult();
+            result.setPartNumber(request.getPartNumber());
+            result.setETag(DigestUtils.md5Hex(content));
+            return result;
+        }
+
+        @Override
+        public synchronized CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+            final SortedMap<Integer, byte[]> parts = uploads.remove(request.getUploadId());
+            assertEquals(parts.size(), request.getPartETags().size());
+            final ByteArrayOutputStream object = new ByteArrayOutputStream();
+            int partNumber = 1;
+            for (PartETag etag : request.getPartETags()) {
+                assertEquals(partNumber ++, etag.getPartNumber());
+                final byte[] part = parts.get(etag.getPartNumber());
+                assertEquals(DigestUtils.md5Hex(part), etag.getETag());
+                if (partNumber <= parts.size()) {
+                    assertTrue(part.length >= S3MultipartOutputStream.MIN_PART_BYTES);
+                }
+                object.write(part, 0, part.length);
+            }
+            objects.put(request.getKey(), object.toByteArray());
+            partCounts.put(request.getKey(), parts.size());
+            final CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+            result.setETag(Hex.encodeHexString(DigestUtils.md5(object.toByteArray())) + "-" + parts.size());
+            return result;
+        }
+
+        @Override
+        public synchronized void abortMultipartUpload(AbortMultipartUploadRequest request) {
+            uploads.remove(request.getUploadId());
+            aborted.add(request.getUploadId());
+        }
+
+        public synchronized byte[] getStoredObject(String key) {
+            return objects.get(key);
+        }
+
+        public synchronized int getPartCount(String key) {
+            return partCounts.get(key);
+        }
+
+        public int getAbortedCount() {
+            return aborted.size();
+        }
+
+        public synchronized boolean hasOpenUploads() {
+            return !uploads.isEmpty();
+        }
+    }
+}